@@ -0,0 +1,22 @@
+plugins {
+    id("java")
+    id("me.champeau.jmh") version "0.7.2"
+}
+
+group = "org.bbq"
+version = "1.0-SNAPSHOT"
+
+repositories {
+    mavenCentral()
+}
+
+dependencies {
+    implementation(project(":"))
+}
+
+jmh {
+    jmhVersion = "1.37"
+    // allocation rate is reported next to every result
+    profilers = listOf("gc")
+    resultFormat = "JSON"
+}
@@ -0,0 +1,56 @@
+package org.bbq.benchmark;
+
+import org.bbq.BoundingBox;
+import org.bbq.lookup.BoundingBoxLookup;
+import org.bbq.lookup.BoundingBoxLookups;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares building a tree one insert at a time against bulk loading it.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LookupBuildBenchmark {
+
+    @Param({"10000", "1000000"})
+    public int entries;
+
+    @Param({"SMALL", "MIXED", "LARGE"})
+    public Workload.BoxSize boxSize;
+
+    @Param({"UNIFORM", "CLUSTERED"})
+    public Workload.Clustering clustering;
+
+    private List<BoundingBoxLookup.Entry<Integer>> generated;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        List<BoundingBox> boxes = Workload.boxes(entries, boxSize, clustering, 1);
+        generated = new ArrayList<>(boxes.size());
+        for (int i = 0; i < boxes.size(); i++) {
+            generated.add(new BoundingBoxLookup.Entry<>(i, boxes.get(i)));
+        }
+    }
+
+    @Benchmark
+    public BoundingBoxLookup<Integer> treeInsert() {
+        BoundingBoxLookup<Integer> lookup = BoundingBoxLookups.tree();
+        for (BoundingBoxLookup.Entry<Integer> entry : generated) {
+            lookup.insert(entry.value(), entry.boundingBox());
+        }
+        return lookup;
+    }
+
+    @Benchmark
+    public BoundingBoxLookup<Integer> treeOf() {
+        return BoundingBoxLookups.treeOf(generated);
+    }
+}
@@ -0,0 +1,83 @@
+package org.bbq.benchmark;
+
+import org.bbq.BoundingBox;
+import org.bbq.QueryItem;
+import org.bbq.lookup.BoundingBoxLookup;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures queries from several threads against a thread-safe lookup, while another thread keeps moving entries.
+ */
+@State(Scope.Group)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LookupConcurrencyBenchmark {
+
+    private static final int QUERY_COUNT = 1024;
+
+    @Param({"concurrent"})
+    public String lookup;
+
+    @Param({"10000", "1000000"})
+    public int entries;
+
+    @Param({"SMALL", "MIXED"})
+    public Workload.BoxSize boxSize;
+
+    @Param({"UNIFORM", "CLUSTERED"})
+    public Workload.Clustering clustering;
+
+    private BoundingBoxLookup<Integer> boundingBoxLookup;
+    private List<BoundingBox> boxes;
+    private QueryItem[] queries;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        boundingBoxLookup = Workload.lookup(lookup);
+        boxes = Workload.boxes(entries, boxSize, clustering, 1);
+        for (int i = 0; i < boxes.size(); i++) {
+            boundingBoxLookup.insert(i, boxes.get(i));
+        }
+        queries = Workload.queries("box", QUERY_COUNT, 0.000001, 2);
+    }
+
+    /**
+     * The position of each thread in the shared data, so threads do not contend on a counter.
+     */
+    @State(Scope.Thread)
+    public static class Cursor {
+        int next;
+    }
+
+    @Benchmark
+    @Group("readWrite")
+    @GroupThreads(3)
+    public void query(Cursor cursor, Blackhole blackhole) {
+        cursor.next = (cursor.next + 1) & (QUERY_COUNT - 1);
+        for (BoundingBoxLookup.Entry<Integer> entry : boundingBoxLookup.visit(queries[cursor.next])) {
+            blackhole.consume(entry);
+        }
+    }
+
+    /**
+     * Moves an entry back and forth by a fraction of its size, like an entity moving for a tick.
+     */
+    @Benchmark
+    @Group("readWrite")
+    @GroupThreads(1)
+    public void update(Cursor cursor) {
+        int index = cursor.next++ % entries;
+        BoundingBox oldBox = boxes.get(index);
+        double offset = (cursor.next / entries) % 2 == 0 ? 0.1 : -0.1;
+        BoundingBox newBox = new BoundingBox(oldBox.min().add(offset), oldBox.max().add(offset));
+        boundingBoxLookup.update(index, oldBox, newBox);
+        boxes.set(index, newBox);
+    }
+}
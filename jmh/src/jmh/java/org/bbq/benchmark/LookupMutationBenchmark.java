@@ -0,0 +1,127 @@
+package org.bbq.benchmark;
+
+import org.bbq.BoundingBox;
+import org.bbq.lookup.BoundingBoxLookup;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the mutating operations of every lookup.
+ * <p>
+ *     Mutations change the state they are measured against, so each iteration starts from a freshly populated lookup
+ *     and applies a batch of {@link #BATCH_SIZE} operations. Scores are reported per batch.
+ * </p>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, batchSize = LookupMutationBenchmark.BATCH_SIZE)
+@Measurement(iterations = 10, batchSize = LookupMutationBenchmark.BATCH_SIZE)
+@Fork(1)
+public class LookupMutationBenchmark {
+
+    static final int BATCH_SIZE = 1000;
+
+    @Param({"list", "grid", "fixedGrid", "hashGrid", "tree", "flatTree", "dynamicTree", "compactDynamicTree", "sweepAndPrune", "concurrent", "indexedDynamicTree"})
+    public String lookup;
+
+    @Param({"100", "10000", "1000000"})
+    public int entries;
+
+    @Param({"SMALL", "MIXED", "LARGE"})
+    public Workload.BoxSize boxSize;
+
+    @Param({"UNIFORM", "CLUSTERED"})
+    public Workload.Clustering clustering;
+
+    private List<BoundingBox> boxes;
+    private List<BoundingBox> insertions;
+
+    private BoundingBoxLookup<Integer> boundingBoxLookup;
+    private int next;
+    // the entries taken out by the removal benchmarks during the iteration
+    private boolean[] removed;
+
+    @Setup(Level.Trial)
+    public void generate() {
+        boxes = Workload.boxes(entries, boxSize, clustering, 1);
+        insertions = Workload.boxes(BATCH_SIZE, boxSize, clustering, 2);
+    }
+
+    @Setup(Level.Iteration)
+    public void populate() {
+        boundingBoxLookup = Workload.lookup(lookup);
+        for (int i = 0; i < boxes.size(); i++) {
+            boundingBoxLookup.insert(i, boxes.get(i));
+        }
+        next = 0;
+        removed = new boolean[entries];
+    }
+
+    /**
+     * Puts back an entry the removal benchmarks are about to remove again, so lookups smaller than the batch keep
+     * measuring removals that hit instead of misses. Runs outside the measured invocation.
+     */
+    @State(Scope.Thread)
+    public static class Removals {
+
+        @Setup(Level.Invocation)
+        public void restore(LookupMutationBenchmark benchmark) {
+            int index = benchmark.next % benchmark.entries;
+            if (benchmark.removed[index]) {
+                benchmark.boundingBoxLookup.insert(index, benchmark.boxes.get(index));
+                benchmark.removed[index] = false;
+            }
+        }
+    }
+
+    /**
+     * @return The next existing entry to mutate, wrapping around for lookups smaller than the batch.
+     */
+    private int nextIndex() {
+        return next++ % entries;
+    }
+
+    @Benchmark
+    public void insert() {
+        int index = next++ % BATCH_SIZE;
+        boundingBoxLookup.insert(entries + index, insertions.get(index));
+    }
+
+    @Benchmark
+    public void removeBoundingBox(Removals removals) {
+        int index = nextIndex();
+        boundingBoxLookup.remove(index, boxes.get(index));
+        removed[index] = true;
+    }
+
+    /**
+     * Moves an entry by a fraction of its size, like an entity moving for a tick.
+     */
+    @Benchmark
+    public void update() {
+        int index = nextIndex();
+        BoundingBox oldBox = boxes.get(index);
+        BoundingBox newBox = new BoundingBox(oldBox.min().add(0.1), oldBox.max().add(0.1));
+        boundingBoxLookup.update(index, oldBox, newBox);
+        boxes.set(index, newBox);
+    }
+
+    /**
+     * Moves an entry and reads the size afterwards, like a tick that also reports metrics.
+     */
+    @Benchmark
+    public int updateAndSize() {
+        update();
+        return boundingBoxLookup.size();
+    }
+
+    @Benchmark
+    public void removeValue(Removals removals) {
+        int index = nextIndex();
+        boundingBoxLookup.remove(index);
+        removed[index] = true;
+    }
+}
@@ -0,0 +1,157 @@
+package org.bbq.benchmark;
+
+import org.bbq.BoundingBox;
+import org.bbq.Line;
+import org.bbq.QueryItem;
+import org.bbq.Vec;
+import org.bbq.lookup.BoundingBoxLookup;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Measures the read only operations of every lookup against a pre-populated lookup.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LookupQueryBenchmark {
+
+    private static final int QUERY_COUNT = 1024;
+
+    @Param({"list", "grid", "fixedGrid", "hashGrid", "tree", "flatTree", "dynamicTree", "compactDynamicTree", "sweepAndPrune", "concurrent"})
+    public String lookup;
+
+    @Param({"100", "10000", "1000000"})
+    public int entries;
+
+    @Param({"SMALL", "MIXED", "LARGE"})
+    public Workload.BoxSize boxSize;
+
+    @Param({"UNIFORM", "CLUSTERED"})
+    public Workload.Clustering clustering;
+
+    @Param({"0.000001", "0.001"})
+    public double selectivity;
+
+    private BoundingBoxLookup<Integer> boundingBoxLookup;
+
+    private QueryItem[] boxQueries;
+    private List<QueryItem> boxQueryList;
+    private QueryItem[] vecQueries;
+    private QueryItem[] lineQueries;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        boundingBoxLookup = Workload.lookup(lookup);
+        List<BoundingBox> boxes = Workload.boxes(entries, boxSize, clustering, 1);
+        for (int i = 0; i < boxes.size(); i++) {
+            boundingBoxLookup.insert(i, boxes.get(i));
+        }
+
+        boxQueries = Workload.queries("box", QUERY_COUNT, selectivity, 2);
+        boxQueryList = List.of(boxQueries);
+        vecQueries = Workload.queries("vec", QUERY_COUNT, selectivity, 3);
+        lineQueries = Workload.queries("line", QUERY_COUNT, selectivity, 4);
+    }
+
+    private QueryItem nextQuery(QueryItem[] queries) {
+        next = (next + 1) & (QUERY_COUNT - 1);
+        return queries[next];
+    }
+
+    private void consume(QueryItem queryItem, Blackhole blackhole) {
+        for (BoundingBoxLookup.Entry<Integer> entry : boundingBoxLookup.visit(queryItem)) {
+            blackhole.consume(entry);
+        }
+    }
+
+    @Benchmark
+    public void visitBoundingBox(Blackhole blackhole) {
+        consume(nextQuery(boxQueries), blackhole);
+    }
+
+    @Benchmark
+    public void visitBoundingBoxCallback(Blackhole blackhole) {
+        boundingBoxLookup.visit(nextQuery(boxQueries), (value, boundingBox) -> blackhole.consume(value));
+    }
+
+    /**
+     * Every box query at once, compare with {@link #QUERY_COUNT} calls of {@link #visitBoundingBoxCallback}.
+     */
+    @Benchmark
+    public void visitBoundingBoxBatch(Blackhole blackhole) {
+        boundingBoxLookup.visitAll(boxQueryList, (index, entry) -> blackhole.consume(entry));
+    }
+
+    @Benchmark
+    public void visitVec(Blackhole blackhole) {
+        consume(nextQuery(vecQueries), blackhole);
+    }
+
+    /**
+     * A placement check, only asking whether anything is there.
+     */
+    @Benchmark
+    public boolean anyBoundingBox() {
+        return boundingBoxLookup.any(nextQuery(boxQueries));
+    }
+
+    @Benchmark
+    public int countBoundingBox() {
+        return boundingBoxLookup.count(nextQuery(boxQueries));
+    }
+
+    @Benchmark
+    public void visitLine(Blackhole blackhole) {
+        consume(nextQuery(lineQueries), blackhole);
+    }
+
+    @Benchmark
+    public BoundingBoxLookup.Hit<Integer> raycast() {
+        Line line = (Line) nextQuery(lineQueries);
+        return boundingBoxLookup.raycast(line.start(), line.end().sub(line.start()), 1);
+    }
+
+    @Benchmark
+    public List<BoundingBoxLookup.Entry<Integer>> nearest() {
+        return boundingBoxLookup.nearest((Vec) nextQuery(vecQueries), 8);
+    }
+
+    @Benchmark
+    public void visitAll(Blackhole blackhole) {
+        consume(QueryItem.ALL, blackhole);
+    }
+
+    /**
+     * Counts instead of consuming each entry, a {@link Blackhole} must not be shared between threads.
+     */
+    @Benchmark
+    public long parallelVisitAll() {
+        LongAdder count = new LongAdder();
+        boundingBoxLookup.parallelVisit(QueryItem.ALL, (value, boundingBox) -> count.increment());
+        return count.sum();
+    }
+
+    @Benchmark
+    public void overlappingPairs(Blackhole blackhole) {
+        boundingBoxLookup.forEachOverlappingPair((a, b) -> blackhole.consume(a));
+    }
+
+    @Benchmark
+    public BoundingBoxLookup<Integer> snapshot() {
+        return boundingBoxLookup.snapshot();
+    }
+
+    @Benchmark
+    public int size() {
+        return boundingBoxLookup.size();
+    }
+}
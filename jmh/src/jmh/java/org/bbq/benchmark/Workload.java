@@ -0,0 +1,143 @@
+package org.bbq.benchmark;
+
+import org.bbq.BoundingBox;
+import org.bbq.Line;
+import org.bbq.QueryItem;
+import org.bbq.Vec;
+import org.bbq.lookup.BoundingBoxLookup;
+import org.bbq.lookup.BoundingBoxLookups;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.function.Supplier;
+
+/**
+ * Deterministic data sets shared by all benchmarks.
+ * <p>
+ *     Every generated box is centered inside a cube of {@link #WORLD_SIZE} units, so the same selectivity means the same
+ *     thing regardless of the box distribution.
+ * </p>
+ */
+public final class Workload {
+
+    static final double WORLD_SIZE = 1024;
+
+    private static final int CLUSTER_COUNT = 32;
+    private static final double CLUSTER_SPREAD = WORLD_SIZE / 64;
+
+    private Workload() {
+    }
+
+    /**
+     * The lookup implementations under test, by factory name.
+     */
+    static <T> BoundingBoxLookup<T> lookup(String name) {
+        Supplier<BoundingBoxLookup<T>> factory = switch (name) {
+            case "list" -> BoundingBoxLookups::list;
+            case "grid" -> BoundingBoxLookups::grid;
+            case "fixedGrid" -> () -> BoundingBoxLookups.grid(new BoundingBox(Vec.ZERO, new Vec(WORLD_SIZE)), 16);
+            case "hashGrid" -> () -> BoundingBoxLookups.hashGrid(8);
+            case "tree" -> BoundingBoxLookups::tree;
+            case "flatTree" -> BoundingBoxLookups::flatTree;
+            case "dynamicTree" -> BoundingBoxLookups::dynamicTree;
+            case "compactDynamicTree" -> BoundingBoxLookups::compactDynamicTree;
+            case "sweepAndPrune" -> BoundingBoxLookups::sweepAndPrune;
+            case "concurrent" -> BoundingBoxLookups::concurrent;
+            case "indexedDynamicTree" -> () -> BoundingBoxLookups.indexed(BoundingBoxLookups.dynamicTree());
+            default -> throw new IllegalArgumentException("Unknown lookup: " + name);
+        };
+        return factory.get();
+    }
+
+    /**
+     * The distribution of box sizes.
+     */
+    public enum BoxSize {
+        /** Entity sized boxes, 0.5 to 2 units wide. */
+        SMALL,
+        /** Mostly small boxes with 5% of the boxes up to 64 units wide. */
+        MIXED,
+        /** Region sized boxes, 8 to 64 units wide. */
+        LARGE;
+
+        double next(Random random) {
+            return switch (this) {
+                case SMALL -> random.nextDouble(0.5, 2);
+                case MIXED -> random.nextDouble() < 0.05 ? random.nextDouble(2, 64) : random.nextDouble(0.5, 2);
+                case LARGE -> random.nextDouble(8, 64);
+            };
+        }
+    }
+
+    /**
+     * The distribution of box positions.
+     */
+    public enum Clustering {
+        /** Positions are spread uniformly over the world. */
+        UNIFORM,
+        /** Positions are normally distributed around a few random centers. */
+        CLUSTERED
+    }
+
+    static List<BoundingBox> boxes(int count, BoxSize boxSize, Clustering clustering, long seed) {
+        Random random = new Random(seed);
+        Vec[] centers = new Vec[CLUSTER_COUNT];
+        for (int i = 0; i < centers.length; i++) {
+            centers[i] = randomPoint(random);
+        }
+
+        List<BoundingBox> boxes = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            Vec center = switch (clustering) {
+                case UNIFORM -> randomPoint(random);
+                case CLUSTERED -> {
+                    Vec cluster = centers[random.nextInt(centers.length)];
+                    yield new Vec(
+                            clamp(cluster.x() + random.nextGaussian() * CLUSTER_SPREAD),
+                            clamp(cluster.y() + random.nextGaussian() * CLUSTER_SPREAD),
+                            clamp(cluster.z() + random.nextGaussian() * CLUSTER_SPREAD)
+                    );
+                }
+            };
+            Vec halfSize = new Vec(boxSize.next(random), boxSize.next(random), boxSize.next(random)).mul(0.5);
+            boxes.add(new BoundingBox(center.sub(halfSize), center.add(halfSize)));
+        }
+        return boxes;
+    }
+
+    /**
+     * Generates query items of the given kind.
+     * @param selectivity The expected fraction of the world covered by box queries, and the length of line queries
+     *                    relative to the world size.
+     */
+    static QueryItem[] queries(String kind, int count, double selectivity, long seed) {
+        Random random = new Random(seed);
+        double extent = WORLD_SIZE * Math.cbrt(selectivity);
+
+        QueryItem[] queries = new QueryItem[count];
+        for (int i = 0; i < count; i++) {
+            Vec point = randomPoint(random);
+            queries[i] = switch (kind) {
+                case "box" -> new BoundingBox(point, point.add(extent));
+                case "vec" -> point;
+                case "line" -> new Line(point, point.add(randomDirection(random).mul(WORLD_SIZE * selectivity)));
+                case "all" -> QueryItem.ALL;
+                default -> throw new IllegalArgumentException("Unknown query kind: " + kind);
+            };
+        }
+        return queries;
+    }
+
+    private static Vec randomPoint(Random random) {
+        return new Vec(random.nextDouble(WORLD_SIZE), random.nextDouble(WORLD_SIZE), random.nextDouble(WORLD_SIZE));
+    }
+
+    private static Vec randomDirection(Random random) {
+        return new Vec(random.nextGaussian(), random.nextGaussian(), random.nextGaussian()).normalize();
+    }
+
+    private static double clamp(double value) {
+        return Math.min(Math.max(value, 0), WORLD_SIZE);
+    }
+}
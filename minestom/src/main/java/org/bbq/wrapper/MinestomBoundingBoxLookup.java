@@ -2,10 +2,6 @@ package org.bbq.wrapper;
 
 import net.minestom.server.collision.BoundingBox;
 
-import java.util.ArrayList;
-import java.util.List;
-import java.util.Objects;
-
 /**
  * Lookup for 3D BoundingBox-Value pairs.
  * <p>
@@ -19,18 +15,4 @@ import java.util.Objects;
  * @param <T> The type of the value associated with a bounding box.
  */
 public interface MinestomBoundingBoxLookup<T> extends WrapperBoundingBoxLookup<T, BoundingBox, MinestomQueryItem> {
-
-    /** {@inheritDoc} */
-    @Override
-    default void remove(T value) {
-        List<Entry<T, BoundingBox>> boundingBoxes = new ArrayList<>();
-        for (Entry<T, BoundingBox> entry : visit(MinestomQueryItem.ALL)) {
-            if (Objects.equals(entry.value(), value)) {
-                boundingBoxes.add(entry);
-            }
-        }
-        for (Entry<T, BoundingBox> entry : boundingBoxes) {
-            remove(value, entry.boundingBox());
-        }
-    }
 }
@@ -4,6 +4,7 @@ import net.minestom.server.collision.BoundingBox;
 import net.minestom.server.coordinate.Vec;
 import org.bbq.Line;
 import org.bbq.QueryItem;
+import org.bbq.Sphere;
 import org.bbq.lookup.BoundingBoxLookup;
 
 class MinestomBoundingBoxLookupImpl<T> extends WrapperBoundingBoxLookupImpl<T, BoundingBox, MinestomQueryItem> implements MinestomBoundingBoxLookup<T> {
@@ -59,6 +60,7 @@ enum QueryItemConverter implements QueryItemWrapper<MinestomQueryItem> {
             case MinestomQueryItem.BoundingBox boundingBox -> BoundingBoxConverter.INSTANCE.toBoundingBox(boundingBox.boundingBox());
             case MinestomQueryItem.Vec vec -> VecConverter.INSTANCE.toVec(vec.vec());
             case MinestomQueryItem.Line line -> new Line(VecConverter.INSTANCE.toVec(line.start()), VecConverter.INSTANCE.toVec(line.end()));
+            case MinestomQueryItem.Sphere sphere -> new Sphere(VecConverter.INSTANCE.toVec(sphere.center()), sphere.radius());
         };
     }
 
@@ -68,6 +70,7 @@ enum QueryItemConverter implements QueryItemWrapper<MinestomQueryItem> {
             case org.bbq.BoundingBox boundingBox -> new MinestomQueryItem.BoundingBox(BoundingBoxConverter.INSTANCE.fromBoundingBox(boundingBox));
             case org.bbq.Vec vec -> new MinestomQueryItem.Vec(VecConverter.INSTANCE.fromVec(vec));
             case Line line -> new MinestomQueryItem.Line(VecConverter.INSTANCE.fromVec(line.start()), VecConverter.INSTANCE.fromVec(line.end()));
+            case Sphere sphere -> new MinestomQueryItem.Sphere(VecConverter.INSTANCE.fromVec(sphere.center()), sphere.radius());
             case QueryItem.All ignored -> MinestomQueryItem.ALL;
         };
     }
@@ -6,6 +6,8 @@ public interface MinestomBoundingBoxLookups {
 
     /**
      * Wraps a {@link BoundingBoxLookup} into a {@link MinestomBoundingBoxLookup}.
+     * {@link MinestomBoundingBoxLookup#remove(Object)} is forwarded to the lookup, wrap it with
+     * {@link org.bbq.lookup.BoundingBoxLookups#indexed(BoundingBoxLookup)} to avoid searching it for the value.
      * @param lookup the lookup to wrap
      * @return the wrapped lookup
      * @param <T> the type of the lookup
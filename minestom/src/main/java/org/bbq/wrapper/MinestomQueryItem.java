@@ -5,7 +5,7 @@ import org.bbq.lookup.BoundingBoxLookup;
 /**
  * This object is able to be used to query a {@link BoundingBoxLookup}.
  */
-public sealed interface MinestomQueryItem permits MinestomQueryItem.All, MinestomQueryItem.BoundingBox, MinestomQueryItem.Line, MinestomQueryItem.Vec {
+public sealed interface MinestomQueryItem permits MinestomQueryItem.All, MinestomQueryItem.BoundingBox, MinestomQueryItem.Line, MinestomQueryItem.Sphere, MinestomQueryItem.Vec {
     MinestomQueryItem ALL = All.INSTANCE;
     enum All implements MinestomQueryItem {
         INSTANCE
@@ -25,4 +25,9 @@ public sealed interface MinestomQueryItem permits MinestomQueryItem.All, Minesto
      * Represents a line.
      */
     record Line(net.minestom.server.coordinate.Vec start, net.minestom.server.coordinate.Vec end) implements MinestomQueryItem { }
+
+    /**
+     * Represents a sphere.
+     */
+    record Sphere(net.minestom.server.coordinate.Vec center, double radius) implements MinestomQueryItem { }
 }
@@ -1,2 +1,3 @@
 rootProject.name = "BoundingBoxQueries"
 include("minestom")
+include("jmh")
@@ -1,7 +1,5 @@
 package org.bbq;
 
-import org.jetbrains.annotations.Nullable;
-
 public record BoundingBox(Vec min, Vec max) implements QueryItem {
 
     public static final BoundingBox EMPTY = new BoundingBox(Vec.ZERO, Vec.ZERO);
@@ -52,6 +50,7 @@ public record BoundingBox(Vec min, Vec max) implements QueryItem {
             case BoundingBox boundingBox -> intersectsBB(boundingBox);
             case Vec vec -> intersectsVec(vec);
             case Line line -> intersectsLine(line);
+            case Sphere sphere -> distanceSquared(sphere.center()) <= sphere.radius() * sphere.radius();
             case All ignored -> true;
         };
     }
@@ -68,54 +67,128 @@ public record BoundingBox(Vec min, Vec max) implements QueryItem {
                 min.z() <= other.z() && max.z() >= other.z();
     }
 
-    private @Nullable Vec getLineIntersection(double fDst1, double fDst2, Vec P1, Vec P2) {
-        if ((fDst1 * fDst2) >= 0.0f) return null;
-        if (fDst1 == fDst2) return null;
-        return P1.add(P2.sub(P1).mul(-fDst1 / (fDst2 - fDst1)));
+    private boolean intersectsLine(Line line) {
+        return intersectsSegment(min.x(), min.y(), min.z(), max.x(), max.y(), max.z(), line.start(), line.end());
     }
 
-    private boolean intersectsLine(Line line) {
-        Vec start = line.start();
-        Vec end = line.end();
-
-        if (end.x() < min.x() && start.x() < min.x()) return false;
-        if (end.x() > max.x() && start.x() > max.x()) return false;
-        if (end.y() < min.y() && start.y() < min.y()) return false;
-        if (end.y() > max.y() && start.y() > max.y()) return false;
-        if (end.z() < min.z() && start.z() < min.z()) return false;
-        if (end.z() > max.z() && start.z() > max.z()) return false;
-        if (start.x() > min.x() && start.x() < max.x() &&
-            start.y() > min.y() && start.y() < max.y() &&
-            start.z() > min.z() && start.z() < max.z()) {
-            return true;
-        }
+    /**
+     * @param point The point to measure from.
+     * @return The squared distance from the point to the nearest point of this bounding box, zero if it is inside.
+     */
+    public double distanceSquared(Vec point) {
+        return distanceSquared(min.x(), min.y(), min.z(), max.x(), max.y(), max.z(), point);
+    }
 
-        {
-            Vec hit = getLineIntersection(start.x() - min.x(), end.x() - min.x(), start, end);
-            if (hit != null && intersectsVec(hit)) return true;
-        }
-        {
-            Vec hit = getLineIntersection(start.y() - min.y(), end.y() - min.y(), start, end);
-            if (hit != null && intersectsVec(hit)) return true;
+    /**
+     * Allocation free variant of {@link #distanceSquared(Vec)} for bounds that are not stored as a bounding box.
+     */
+    public static double distanceSquared(double minX, double minY, double minZ,
+                                         double maxX, double maxY, double maxZ, Vec point) {
+        double x = Math.max(Math.max(minX - point.x(), point.x() - maxX), 0);
+        double y = Math.max(Math.max(minY - point.y(), point.y() - maxY), 0);
+        double z = Math.max(Math.max(minZ - point.z(), point.z() - maxZ), 0);
+        return x * x + y * y + z * z;
+    }
+
+    /**
+     * Allocation free variant of {@link #intersects(QueryItem)} for bounds that are not stored as a bounding box.
+     * @return {@code true} if the item intersects with the given bounds, {@code false} otherwise.
+     */
+    public static boolean intersects(double minX, double minY, double minZ,
+                                     double maxX, double maxY, double maxZ, QueryItem item) {
+        return switch (item) {
+            case BoundingBox other -> minX <= other.max.x() && maxX >= other.min.x() &&
+                    minY <= other.max.y() && maxY >= other.min.y() &&
+                    minZ <= other.max.z() && maxZ >= other.min.z();
+            case Vec vec -> minX <= vec.x() && maxX >= vec.x() &&
+                    minY <= vec.y() && maxY >= vec.y() &&
+                    minZ <= vec.z() && maxZ >= vec.z();
+            case Line line -> intersectsSegment(minX, minY, minZ, maxX, maxY, maxZ, line.start(), line.end());
+            case Sphere sphere -> distanceSquared(minX, minY, minZ, maxX, maxY, maxZ, sphere.center()) <=
+                    sphere.radius() * sphere.radius();
+            case All ignored -> true;
+        };
+    }
+
+    /**
+     * Slab test of a ray against the given bounds. The inverse of the ray's direction is passed in so that it is only
+     * computed once for every bounds tested against the ray, zero direction components have an infinite inverse.
+     * @return The distance along the ray at which it enters the bounds in multiples of its direction, zero if it
+     * starts inside them, or {@link Double#POSITIVE_INFINITY} if it does not reach them within the max distance.
+     */
+    public static double rayDistance(double minX, double minY, double minZ,
+                                     double maxX, double maxY, double maxZ, Vec origin,
+                                     double inverseX, double inverseY, double inverseZ, double maxDistance) {
+        double tMin = 0;
+        double tMax = maxDistance;
+
+        if (Double.isInfinite(inverseX)) {
+            if (origin.x() < minX || origin.x() > maxX) return Double.POSITIVE_INFINITY;
+        } else {
+            double t1 = (minX - origin.x()) * inverseX;
+            double t2 = (maxX - origin.x()) * inverseX;
+            tMin = Math.max(tMin, Math.min(t1, t2));
+            tMax = Math.min(tMax, Math.max(t1, t2));
         }
-        {
-            Vec hit = getLineIntersection(start.z() - min.z(), end.z() - min.z(), start, end);
-            if (hit != null && intersectsVec(hit)) return true;
+
+        if (Double.isInfinite(inverseY)) {
+            if (origin.y() < minY || origin.y() > maxY) return Double.POSITIVE_INFINITY;
+        } else {
+            double t1 = (minY - origin.y()) * inverseY;
+            double t2 = (maxY - origin.y()) * inverseY;
+            tMin = Math.max(tMin, Math.min(t1, t2));
+            tMax = Math.min(tMax, Math.max(t1, t2));
         }
-        {
-            Vec hit = getLineIntersection(start.x() - max.x(), end.x() - max.x(), start, end);
-            if (hit != null && intersectsVec(hit)) return true;
+
+        if (Double.isInfinite(inverseZ)) {
+            if (origin.z() < minZ || origin.z() > maxZ) return Double.POSITIVE_INFINITY;
+        } else {
+            double t1 = (minZ - origin.z()) * inverseZ;
+            double t2 = (maxZ - origin.z()) * inverseZ;
+            tMin = Math.max(tMin, Math.min(t1, t2));
+            tMax = Math.min(tMax, Math.max(t1, t2));
         }
-        {
-            Vec hit = getLineIntersection(start.y() - max.y(), end.y() - max.y(), start, end);
-            if (hit != null && intersectsVec(hit)) return true;
+
+        return tMin <= tMax ? tMin : Double.POSITIVE_INFINITY;
+    }
+
+    // Slab test, clipping the segment's parameter range against each axis in turn
+    private static boolean intersectsSegment(double minX, double minY, double minZ,
+                                             double maxX, double maxY, double maxZ, Vec start, Vec end) {
+        double tMin = 0;
+        double tMax = 1;
+
+        double d = end.x() - start.x();
+        if (d == 0) {
+            if (start.x() < minX || start.x() > maxX) return false;
+        } else {
+            double t1 = (minX - start.x()) / d;
+            double t2 = (maxX - start.x()) / d;
+            tMin = Math.max(tMin, Math.min(t1, t2));
+            tMax = Math.min(tMax, Math.max(t1, t2));
+            if (tMin > tMax) return false;
         }
-        {
-            Vec hit = getLineIntersection(start.z() - max.z(), end.z() - max.z(), start, end);
-            if (hit != null && intersectsVec(hit)) return true;
+
+        d = end.y() - start.y();
+        if (d == 0) {
+            if (start.y() < minY || start.y() > maxY) return false;
+        } else {
+            double t1 = (minY - start.y()) / d;
+            double t2 = (maxY - start.y()) / d;
+            tMin = Math.max(tMin, Math.min(t1, t2));
+            tMax = Math.min(tMax, Math.max(t1, t2));
+            if (tMin > tMax) return false;
         }
 
-        return false;
+        d = end.z() - start.z();
+        if (d == 0) {
+            return start.z() >= minZ && start.z() <= maxZ;
+        }
+        double t1 = (minZ - start.z()) / d;
+        double t2 = (maxZ - start.z()) / d;
+        tMin = Math.max(tMin, Math.min(t1, t2));
+        tMax = Math.min(tMax, Math.max(t1, t2));
+        return tMin <= tMax;
     }
 
     public boolean contains(QueryItem item) {
@@ -123,6 +196,7 @@ public record BoundingBox(Vec min, Vec max) implements QueryItem {
             case BoundingBox boundingBox -> containsBB(boundingBox);
             case Vec vec -> containsVec(vec);
             case Line line -> containsLine(line);
+            case Sphere sphere -> containsBB(sphere.boundingBox());
             case All ignored -> true;
         };
     }
@@ -5,7 +5,7 @@ import org.bbq.lookup.BoundingBoxLookup;
 /**
  * This object is able to be used to query a {@link BoundingBoxLookup}.
  */
-public sealed interface QueryItem permits BoundingBox, Vec, Line, QueryItem.All {
+public sealed interface QueryItem permits BoundingBox, Vec, Line, Sphere, QueryItem.All {
     QueryItem ALL = All.INSTANCE;
 
     enum All implements QueryItem {
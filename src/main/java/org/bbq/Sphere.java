@@ -0,0 +1,14 @@
+package org.bbq;
+
+/**
+ * A sphere, used to query everything within a radius of a point.
+ */
+public record Sphere(Vec center, double radius) implements QueryItem {
+
+    /**
+     * @return The smallest bounding box containing this sphere.
+     */
+    public BoundingBox boundingBox() {
+        return new BoundingBox(center.sub(radius), center.add(radius));
+    }
+}
@@ -4,8 +4,15 @@ import org.bbq.BoundingBox;
 import org.bbq.QueryItem;
 import org.bbq.lookup.BoundingBoxLookup;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 import java.util.Iterator;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.function.BiConsumer;
+import java.util.function.BiPredicate;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
 import java.util.stream.StreamSupport;
 
 public interface BoundingBoxCollection<T> extends Iterable<T> {
@@ -44,10 +51,149 @@ public interface BoundingBoxCollection<T> extends Iterable<T> {
     @NotNull
     Iterable<BoundingBoxLookup.Entry<T>> visit(QueryItem queryItem);
 
+    /**
+     * Visits each value in the lookup that intersects with the given query item, until the visitor asks to stop.
+     * <p>
+     *     This is the allocation free counterpart of {@link #visit(QueryItem)}, implementations traverse their
+     *     structure directly instead of building an {@link Iterable}.
+     * </p>
+     * @param queryItem The query item to check for intersections.
+     * @param visitor Accepts each value and its bounding box, returning {@code true} to stop visiting.
+     * @return {@code true} if the visitor stopped the visit early, {@code false} otherwise.
+     * @implSpec Elements will not be visited more than once.
+     */
+    default boolean visitUntil(QueryItem queryItem, BiPredicate<? super T, ? super BoundingBox> visitor) {
+        for (Entry<T> entry : visit(queryItem)) {
+            if (visitor.test(entry.value(), entry.boundingBox())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Checks whether any value in the lookup intersects with the given query item, stopping at the first one found.
+     * @param queryItem The query item to check for intersections.
+     * @return {@code true} if a value intersects with the query item.
+     */
+    default boolean any(QueryItem queryItem) {
+        return visitUntil(queryItem, (value, boundingBox) -> true);
+    }
+
+    /**
+     * Finds a value in the lookup that intersects with the given query item, stopping at the first one found.
+     * @param queryItem The query item to check for intersections.
+     * @return The first entry visited, in no particular order, or {@code null} if no value intersects.
+     */
+    default @Nullable Entry<T> first(QueryItem queryItem) {
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        Entry<T>[] first = new Entry[1];
+        visitUntil(queryItem, (value, boundingBox) -> {
+            first[0] = new Entry<>(value, boundingBox);
+            return true;
+        });
+        return first[0];
+    }
+
+    /**
+     * Counts the values in the lookup that intersect with the given query item, without collecting them.
+     * @param queryItem The query item to check for intersections.
+     * @return The number of entries intersecting with the query item.
+     */
+    default int count(QueryItem queryItem) {
+        if (queryItem instanceof QueryItem.All) {
+            return size();
+        }
+        int[] count = {0};
+        visitUntil(queryItem, (value, boundingBox) -> {
+            count[0]++;
+            return false;
+        });
+        return count[0];
+    }
+
+    /**
+     * Visits each value in the lookup that intersects with the given query item.
+     * @param queryItem The query item to check for intersections.
+     * @param consumer Accepts each value and its bounding box.
+     * @see #visitUntil(QueryItem, BiPredicate)
+     */
+    default void visit(QueryItem queryItem, BiConsumer<? super T, ? super BoundingBox> consumer) {
+        visitUntil(queryItem, (value, boundingBox) -> {
+            consumer.accept(value, boundingBox);
+            return false;
+        });
+    }
+
+    /**
+     * Visits each value in the lookup that intersects with the given query item.
+     * @param queryItem The query item to check for intersections.
+     * @param consumer Accepts each value.
+     * @see #visitUntil(QueryItem, BiPredicate)
+     */
+    default void visit(QueryItem queryItem, Consumer<? super T> consumer) {
+        visitUntil(queryItem, (value, boundingBox) -> {
+            consumer.accept(value);
+            return false;
+        });
+    }
+
+    /**
+     * Creates a {@link Spliterator} over the entries intersecting the given query item, for use with
+     * {@link StreamSupport#stream(Spliterator, boolean)}. Implementations traverse lazily and split along their
+     * structure, so parallel streams divide the query between threads.
+     * <p>
+     *     The spliterator is {@link Spliterator#NONNULL}, and {@link Spliterator#SIZED} for {@link QueryItem#ALL}
+     *     until it is split. It is not {@link Spliterator#DISTINCT}, as equal entries may be inserted several times.
+     * </p>
+     * @param queryItem The query item to check for intersections.
+     * @implSpec Elements will not be returned more than once.
+     */
+    default @NotNull Spliterator<BoundingBoxLookup.Entry<T>> spliterator(QueryItem queryItem) {
+        Iterator<BoundingBoxLookup.Entry<T>> iterator = visit(queryItem).iterator();
+        if (queryItem instanceof QueryItem.All) {
+            return Spliterators.spliterator(iterator, size(), Spliterator.NONNULL);
+        }
+        return Spliterators.spliteratorUnknownSize(iterator, Spliterator.NONNULL);
+    }
+
+    /**
+     * Streams the entries intersecting the given query item.
+     * @param queryItem The query item to check for intersections.
+     * @see #spliterator(QueryItem)
+     */
+    default @NotNull Stream<BoundingBoxLookup.Entry<T>> stream(QueryItem queryItem) {
+        return StreamSupport.stream(spliterator(queryItem), false);
+    }
+
+    /**
+     * Visits each value in the lookup that intersects with the given query item, using the common
+     * {@link java.util.concurrent.ForkJoinPool} to visit parts of the lookup in parallel.
+     * <p>
+     *     The lookup must not be modified during the visit.
+     * </p>
+     * @param queryItem The query item to check for intersections.
+     * @param consumer Accepts each value and its bounding box, called from several threads at once.
+     * @see #spliterator(QueryItem)
+     */
+    default void parallelVisit(QueryItem queryItem, BiConsumer<? super T, ? super BoundingBox> consumer) {
+        StreamSupport.stream(spliterator(queryItem), true)
+                .forEach(entry -> consumer.accept(entry.value(), entry.boundingBox()));
+    }
+
     @Override
     default @NotNull Iterator<T> iterator() {
-        return StreamSupport.stream(visit(QueryItem.ALL).spliterator(), false)
-                .map(BoundingBoxLookup.Entry::value)
-                .iterator();
+        Iterator<BoundingBoxLookup.Entry<T>> entries = visit(QueryItem.ALL).iterator();
+        return new Iterator<>() {
+            @Override
+            public boolean hasNext() {
+                return entries.hasNext();
+            }
+
+            @Override
+            public T next() {
+                return entries.next().value();
+            }
+        };
     }
 }
@@ -2,11 +2,16 @@ package org.bbq.lookup;
 
 import org.bbq.BoundingBox;
 import org.bbq.QueryItem;
+import org.bbq.Vec;
 import org.bbq.collection.BoundingBoxCollection;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.List;
 import java.util.Objects;
+import java.util.function.BiConsumer;
 
 /**
  * Lookup for 3D BoundingBox-Value pairs.
@@ -29,6 +34,18 @@ public interface BoundingBoxLookup<T> extends BoundingBoxCollection<T> {
      */
     void remove(T value, BoundingBox boundingBox);
 
+    /**
+     * Moves an entry from one bounding box to another. This behaves like {@link #remove(Object, BoundingBox)}
+     * followed by {@link #insert(Object, BoundingBox)}, but lets implementations avoid redundant work for small moves.
+     * @param value The value of the entry.
+     * @param oldBoundingBox The bounding box the entry currently has.
+     * @param newBoundingBox The bounding box the entry should have.
+     */
+    default void update(T value, BoundingBox oldBoundingBox, BoundingBox newBoundingBox) {
+        remove(value, oldBoundingBox);
+        insert(value, newBoundingBox);
+    }
+
     /** {@inheritDoc} */
     @Override
     default void remove(T value) {
@@ -42,4 +59,133 @@ public interface BoundingBoxLookup<T> extends BoundingBoxCollection<T> {
             remove(value, entry.boundingBox());
         }
     }
+
+    /**
+     * Creates a read-only view of the lookup as it is now, later modifications of the lookup do not show up in it.
+     * The snapshot may be queried from other threads while the lookup is modified, as long as the lookup is not
+     * modified during this call.
+     * <p>
+     *     By default this copies every entry into a new tree. Implementations sharing their structure with the
+     *     snapshot are much cheaper, see {@link BoundingBoxLookups#tree()} and {@link BoundingBoxLookups#grid()}.
+     * </p>
+     * @return The snapshot, its modifying methods throw {@link UnsupportedOperationException}.
+     */
+    default BoundingBoxLookup<T> snapshot() {
+        List<Entry<T>> entries = new ArrayList<>(size());
+        for (Entry<T> entry : visit(QueryItem.ALL)) {
+            entries.add(entry);
+        }
+        return new ReadOnlyLookupImpl<>(new TreeLookupImpl<>(entries));
+    }
+
+    /**
+     * An entry hit by a ray.
+     * @param distance The distance along the ray at which it enters the bounding box, in multiples of the ray's
+     *                 direction. Zero if the ray starts inside the bounding box.
+     */
+    record Hit<T>(T value, BoundingBox boundingBox, double distance) {
+    }
+
+    /**
+     * Finds the entry a ray hits first.
+     * @param origin The origin of the ray.
+     * @param direction The direction of the ray, distances are measured in multiples of it.
+     * @param maxDistance How far the ray reaches, must be finite.
+     * @return The nearest hit within the max distance, or {@code null} if nothing is hit.
+     */
+    default @Nullable Hit<T> raycast(Vec origin, Vec direction, double maxDistance) {
+        Ray<T> ray = new Ray<>(origin, direction, maxDistance);
+        visit(ray.line(), ray::test);
+        return ray.result();
+    }
+
+    /**
+     * Finds every entry a ray hits.
+     * @param origin The origin of the ray.
+     * @param direction The direction of the ray, distances are measured in multiples of it.
+     * @param maxDistance How far the ray reaches, must be finite.
+     * @return The hits within the max distance, ordered from nearest to furthest.
+     */
+    default @NotNull List<Hit<T>> raycastAll(Vec origin, Vec direction, double maxDistance) {
+        Ray<T> ray = new Ray<>(origin, direction, maxDistance);
+        List<Hit<T>> hits = new ArrayList<>();
+        visit(ray.line(), (value, boundingBox) -> {
+            double distance = ray.distance(boundingBox);
+            if (distance <= maxDistance) {
+                hits.add(new Hit<>(value, boundingBox, distance));
+            }
+        });
+        hits.sort(Comparator.comparingDouble(Hit::distance));
+        return hits;
+    }
+
+    /**
+     * Finds the entries nearest to a point, measured from the point to the nearest point of each bounding box.
+     * @param point The point to measure from.
+     * @param k The number of entries to find.
+     * @return Up to k entries, ordered from nearest to furthest. Entries at the same distance are in no particular
+     * order.
+     */
+    default @NotNull List<Entry<T>> nearest(Vec point, int k) {
+        Nearest<T> nearest = new Nearest<>(point, k);
+        visit(QueryItem.ALL, nearest::offer);
+        return nearest.result();
+    }
+
+    /**
+     * Accepts the entries found by {@link #visitAll(List, BatchConsumer)}.
+     */
+    @FunctionalInterface
+    interface BatchConsumer<T> {
+        /**
+         * @param index The index of the query item in the list.
+         * @param entry An entry intersecting the query item.
+         */
+        void accept(int index, Entry<T> entry);
+    }
+
+    /**
+     * Visits the entries intersecting each of many query items, like calling {@link #visit(QueryItem)} for each of
+     * them. Implementations may traverse the lookup once for several queries near each other.
+     * @param queries The query items.
+     * @param sink Accepts the index of a query item in the list and an entry intersecting it. Entries are passed in no
+     *             particular order, also across query items.
+     */
+    default void visitAll(List<QueryItem> queries, BatchConsumer<T> sink) {
+        for (int i = 0; i < queries.size(); i++) {
+            int index = i;
+            visit(queries.get(i), (value, boundingBox) -> sink.accept(index, new Entry<>(value, boundingBox)));
+        }
+    }
+
+    /**
+     * Visits every pair of entries whose bounding boxes intersect, each pair once and in no particular order.
+     * <p>
+     *     By default this sorts the entries along the x axis and sweeps over them, only comparing entries that overlap
+     *     along it.
+     * </p>
+     * @param consumer Accepts both entries of each pair.
+     */
+    default void forEachOverlappingPair(BiConsumer<Entry<T>, Entry<T>> consumer) {
+        List<Entry<T>> entries = new ArrayList<>(size());
+        for (Entry<T> entry : visit(QueryItem.ALL)) {
+            entries.add(entry);
+        }
+        entries.sort(Comparator.comparingDouble(entry -> entry.boundingBox().min().x()));
+
+        for (int i = 0; i < entries.size(); i++) {
+            Entry<T> entry = entries.get(i);
+            BoundingBox boundingBox = entry.boundingBox();
+            for (int j = i + 1; j < entries.size(); j++) {
+                Entry<T> other = entries.get(j);
+                if (other.boundingBox().min().x() > boundingBox.max().x()) {
+                    // every further entry starts after this one ends
+                    break;
+                }
+                if (boundingBox.intersects(other.boundingBox())) {
+                    consumer.accept(entry, other);
+                }
+            }
+        }
+    }
 }
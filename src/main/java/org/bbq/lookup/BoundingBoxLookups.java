@@ -3,6 +3,8 @@ package org.bbq.lookup;
 import org.bbq.BoundingBox;
 import org.bbq.QueryItem;
 
+import java.util.Collection;
+
 public interface BoundingBoxLookups {
 
     /**
@@ -30,6 +32,35 @@ public interface BoundingBoxLookups {
         return new GridLookupImpl<>();
     }
 
+    /**
+     * Creates a new {@link BoundingBoxLookup} with a grid spanning fixed bounds. Unlike {@link #grid()}, the grid is
+     * never rebuilt, entries outside the bounds are kept in the outermost cells.
+     * <p>
+     *     {@link BoundingBoxLookup#insert(Object, BoundingBox)} - O(1)
+     *     {@link BoundingBoxLookup#remove(Object, BoundingBox)} - O(log(n))
+     *     {@link BoundingBoxLookup#visit(QueryItem)} - O(log(n))
+     * <p>
+     * @param bounds The bounds of the grid, usually the bounds of the world.
+     * @param gridSize The number of cells along each axis.
+     */
+    static <T> BoundingBoxLookup<T> grid(BoundingBox bounds, int gridSize) {
+        return new GridLookupImpl<>(bounds, gridSize);
+    }
+
+    /**
+     * Creates a new {@link BoundingBoxLookup} with an unbounded grid of fixed size cells, only occupied cells take up
+     * memory. This type of implementation is generally faster for large, sparsely populated worlds.
+     * <p>
+     *     {@link BoundingBoxLookup#insert(Object, BoundingBox)} - O(1)
+     *     {@link BoundingBoxLookup#remove(Object, BoundingBox)} - O(1)
+     *     {@link BoundingBoxLookup#visit(QueryItem)} - O(min(cells in the query, occupied cells))
+     * <p>
+     * @param cellSize The size of each cell along every axis, usually a little larger than a typical entry.
+     */
+    static <T> BoundingBoxLookup<T> hashGrid(double cellSize) {
+        return new HashGridLookupImpl<>(cellSize);
+    }
+
     /**
      * Creates a new {@link BoundingBoxLookup}. This type of implementation is generally faster for large datasets.
      * <p>
@@ -41,4 +72,118 @@ public interface BoundingBoxLookups {
     static <T> BoundingBoxLookup<T> tree() {
         return new TreeLookupImpl<>();
     }
+
+    /**
+     * Creates a new {@link BoundingBoxLookup}. This type of implementation is generally faster for large datasets
+     * that are modified often.
+     * <p>
+     *     {@link BoundingBoxLookup#insert(Object, BoundingBox)} - O(log(n))
+     *     {@link BoundingBoxLookup#remove(Object, BoundingBox)} - O(log(n))
+     *     {@link BoundingBoxLookup#visit(QueryItem)} - O(log(n))
+     * <p>
+     * @implNote This implementation is backed by a pool of primitive arrays and is modified in place, inserts and
+     * removes do not allocate once the pool has grown to fit the lookup.
+     */
+    static <T> BoundingBoxLookup<T> dynamicTree() {
+        return new DynamicTreeLookupImpl<>();
+    }
+
+    /**
+     * Creates a new {@link BoundingBoxLookup} like {@link #dynamicTree()}.
+     * @param margin The distance the tree enlarges each entry's bounding box by. Moving an entry with
+     *               {@link BoundingBoxLookup#update(Object, BoundingBox, BoundingBox)} costs nothing while it stays
+     *               within the enlarged box, at the price of looser bounds for queries.
+     * @throws IllegalArgumentException If the margin is negative or not finite.
+     */
+    static <T> BoundingBoxLookup<T> dynamicTree(double margin) {
+        return new DynamicTreeLookupImpl<>(margin);
+    }
+
+    /**
+     * Creates a new {@link BoundingBoxLookup} like {@link #dynamicTree()}, storing the bounding boxes of its entries
+     * with float precision. Boxes are rounded outwards, so queries never miss an entry but may find entries within a
+     * float's precision of the query.
+     * <p>
+     *     Entries are reported with their rounded boxes, and boxes that round to the same floats are not told apart by
+     *     {@link BoundingBoxLookup#remove(Object, BoundingBox)}.
+     * </p>
+     * @implNote This implementation keeps six floats per entry instead of a {@link BoundingBox} and its two
+     * {@link org.bbq.Vec}s, and creates the reported boxes as entries are visited.
+     */
+    static <T> BoundingBoxLookup<T> compactDynamicTree() {
+        return new DynamicTreeLookupImpl<>(DynamicTreeLookupImpl.DEFAULT_MARGIN, true);
+    }
+
+    /**
+     * Creates a new {@link BoundingBoxLookup} like {@link #tree()}, already containing the given entries.
+     * <p>
+     *     The hierarchy is built top-down in a single pass using the surface area heuristic, which is faster and
+     *     gives a better balanced tree than inserting the entries one at a time. Large inputs are built in parallel.
+     * </p>
+     * @param entries The entries to insert.
+     */
+    static <T> BoundingBoxLookup<T> treeOf(Collection<BoundingBoxLookup.Entry<T>> entries) {
+        return new TreeLookupImpl<>(entries);
+    }
+
+    /**
+     * Creates a new {@link BoundingBoxLookup}. This type of implementation is generally faster for large datasets
+     * that are queried far more often than they are modified.
+     * <p>
+     *     {@link BoundingBoxLookup#insert(Object, BoundingBox)} - O(1)
+     *     {@link BoundingBoxLookup#remove(Object, BoundingBox)} - O(1)
+     *     {@link BoundingBoxLookup#visit(QueryItem)} - O(log(n) + sqrt(n)), O(n) after a removal or update, O(n log(n))
+     *     after about sqrt(n) inserts
+     * <p>
+     * @implNote This implementation is backed by primitive arrays. Queries scan the entries inserted since the last
+     * rebuild until about sqrt(n) of them pile up and the next query rebuilds, removals and updates only refit it.
+     */
+    static <T> BoundingBoxLookup<T> flatTree() {
+        return new FlatTreeLookupImpl<>();
+    }
+
+    /**
+     * Creates a new {@link BoundingBoxLookup} keeping the endpoints of its entries sorted along each axis. This type
+     * of implementation is generally faster for scenes where entries move a little at a time, such as physics
+     * simulations, and for enumerating overlapping pairs.
+     * <p>
+     *     {@link BoundingBoxLookup#insert(Object, BoundingBox)} - O(1), O(n log(n)) on the next query
+     *     {@link BoundingBoxLookup#remove(Object, BoundingBox)} - O(1) amortized
+     *     {@link BoundingBoxLookup#update(Object, BoundingBox, BoundingBox)} - O(k), where k is the number of endpoints moved past
+     *     {@link BoundingBoxLookup#visit(QueryItem)} - O(log(n) + m), where m is the number of entries overlapping the query along one axis
+     * <p>
+     * @implNote This implementation is backed by primitive arrays of endpoints, sorted by insertion sort as entries move.
+     */
+    static <T> BoundingBoxLookup<T> sweepAndPrune() {
+        return new SapLookupImpl<>();
+    }
+
+    /**
+     * Creates a new thread-safe {@link BoundingBoxLookup} like {@link #tree()}. Queries never block and see the lookup
+     * as it was when they started, concurrent writes retry until they are applied one after the other.
+     * <p>
+     *     {@link BoundingBoxLookup#insert(Object, BoundingBox)} - O(log(n)) per attempt
+     *     {@link BoundingBoxLookup#remove(Object, BoundingBox)} - O(log(n)) per attempt
+     *     {@link BoundingBoxLookup#visit(QueryItem)} - O(log(n))
+     * <p>
+     * @implNote This implementation publishes immutable trees through an atomic reference, each write path copies the
+     * tree and publishes the copy with a compare-and-set.
+     */
+    static <T> BoundingBoxLookup<T> concurrent() {
+        return new ConcurrentLookupImpl<>();
+    }
+
+    /**
+     * Wraps a {@link BoundingBoxLookup} with a reverse index from values to their bounding boxes, so that
+     * {@link BoundingBoxLookup#remove(Object)} only has to remove the value's own entries instead of searching the
+     * whole lookup for them. The index costs one map entry per distinct value.
+     * <p>
+     *     {@link BoundingBoxLookup#remove(Object)} - O(k) removals, where k is the value's number of entries
+     * <p>
+     * @param lookup The lookup to wrap, it should not be modified other than through the returned lookup. The index is
+     *               not thread-safe, even if the lookup is.
+     */
+    static <T> BoundingBoxLookup<T> indexed(BoundingBoxLookup<T> lookup) {
+        return new IndexedLookupImpl<>(lookup);
+    }
 }
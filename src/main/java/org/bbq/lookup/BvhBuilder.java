@@ -0,0 +1,231 @@
+package org.bbq.lookup;
+
+import org.bbq.BoundingBox;
+
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Builds a bounding volume hierarchy top-down in a single pass, splitting with the binned surface area heuristic.
+ * <p>
+ *     Every leaf holds exactly one box, so a hierarchy over n boxes always has 2n - 1 nodes. Nodes are numbered in
+ *     depth-first order: the left child of a node directly follows it. Subtrees above a size threshold are built in
+ *     parallel on the common fork/join pool.
+ * </p>
+ */
+final class BvhBuilder {
+
+    private static final int BIN_COUNT = 16;
+    private static final int PARALLEL_THRESHOLD = 4096;
+
+    /**
+     * Creates the nodes of the hierarchy, children are always assembled before their parent. Assemblers writing
+     * nodes into primitive arrays can use {@link Void} and find the children by their index instead.
+     * @param <N> The node type.
+     */
+    interface Assembler<N> {
+        /**
+         * @param node The depth-first index of the leaf.
+         * @param box The index of the box held by the leaf.
+         */
+        N leaf(int node, int box);
+
+        /**
+         * @param node The depth-first index of the branch, its left child is at {@code node + 1}.
+         * @param rightNode The depth-first index of the right child.
+         */
+        N branch(int node, int rightNode, N left, N right);
+    }
+
+    private final double[] bounds;
+    private final double[] centroids;
+    private final int[] order;
+
+    private BvhBuilder(BoundingBox[] boxes) {
+        int count = boxes.length;
+        this.bounds = new double[count * 6];
+        this.centroids = new double[count * 3];
+        this.order = new int[count];
+        for (int i = 0; i < count; i++) {
+            BoundingBox box = boxes[i];
+            bounds[i * 6] = box.min().x();
+            bounds[i * 6 + 1] = box.min().y();
+            bounds[i * 6 + 2] = box.min().z();
+            bounds[i * 6 + 3] = box.max().x();
+            bounds[i * 6 + 4] = box.max().y();
+            bounds[i * 6 + 5] = box.max().z();
+            for (int axis = 0; axis < 3; axis++) {
+                centroids[i * 3 + axis] = (bounds[i * 6 + axis] + bounds[i * 6 + 3 + axis]) * 0.5;
+            }
+            order[i] = i;
+        }
+    }
+
+    /**
+     * Builds a hierarchy over the given boxes.
+     * @param boxes The boxes to build over, must not be empty.
+     * @param assembler Creates the nodes.
+     * @return The root node.
+     */
+    static <N> N build(BoundingBox[] boxes, Assembler<N> assembler) {
+        if (boxes.length == 0) {
+            throw new IllegalArgumentException("Cannot build a hierarchy without boxes");
+        }
+        BvhBuilder builder = new BvhBuilder(boxes);
+        if (boxes.length > PARALLEL_THRESHOLD) {
+            return builder.new BuildTask<>(assembler, 0, boxes.length, 0).invoke();
+        }
+        return builder.build(assembler, 0, boxes.length, 0);
+    }
+
+    private <N> N build(Assembler<N> assembler, int from, int to, int node) {
+        if (to - from == 1) {
+            return assembler.leaf(node, order[from]);
+        }
+        int mid = split(from, to);
+        // the left subtree holds mid - from leaves, and so 2 * (mid - from) - 1 nodes
+        int rightNode = node + 2 * (mid - from);
+        N left = build(assembler, from, mid, node + 1);
+        return assembler.branch(node, rightNode, left, build(assembler, mid, to, rightNode));
+    }
+
+    // Builds subtrees in parallel down to the threshold, and below it serially
+    @SuppressWarnings("serial")
+    private final class BuildTask<N> extends RecursiveTask<N> {
+
+        private final Assembler<N> assembler;
+        private final int from;
+        private final int to;
+        private final int node;
+
+        BuildTask(Assembler<N> assembler, int from, int to, int node) {
+            this.assembler = assembler;
+            this.from = from;
+            this.to = to;
+            this.node = node;
+        }
+
+        @Override
+        protected N compute() {
+            if (to - from <= PARALLEL_THRESHOLD) {
+                return build(assembler, from, to, node);
+            }
+
+            int mid = split(from, to);
+            int rightNode = node + 2 * (mid - from);
+            BuildTask<N> left = new BuildTask<>(assembler, from, mid, node + 1);
+            left.fork();
+            N right = new BuildTask<>(assembler, mid, to, rightNode).compute();
+            return assembler.branch(node, rightNode, left.join(), right);
+        }
+    }
+
+    /**
+     * Partitions order[from, to) into two non-empty halves.
+     * @return The start of the right half.
+     */
+    private int split(int from, int to) {
+        double[] centroidMin = {Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY};
+        double[] centroidMax = {Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY};
+        for (int i = from; i < to; i++) {
+            int offset = order[i] * 3;
+            for (int axis = 0; axis < 3; axis++) {
+                centroidMin[axis] = Math.min(centroidMin[axis], centroids[offset + axis]);
+                centroidMax[axis] = Math.max(centroidMax[axis], centroids[offset + axis]);
+            }
+        }
+
+        int axis = 0;
+        for (int i = 1; i < 3; i++) {
+            if (centroidMax[i] - centroidMin[i] > centroidMax[axis] - centroidMin[axis]) {
+                axis = i;
+            }
+        }
+        double min = centroidMin[axis];
+        double extent = centroidMax[axis] - min;
+        if (!(extent > 0)) {
+            // every centroid is the same, any split is as good as another
+            return (from + to) >>> 1;
+        }
+
+        // bin the boxes by centroid, tracking the count and bounds of each bin
+        double scale = BIN_COUNT / extent;
+        int[] binCounts = new int[BIN_COUNT];
+        double[] binBounds = emptyBounds(BIN_COUNT);
+        for (int i = from; i < to; i++) {
+            int box = order[i];
+            int bin = bin(box, axis, min, scale);
+            binCounts[bin]++;
+            include(binBounds, bin, bounds, box);
+        }
+
+        // sweep from the right to find the cost of every right half, then from the left to find the cheapest split
+        double[] rightCosts = new double[BIN_COUNT];
+        double[] sweep = emptyBounds(1);
+        int count = 0;
+        for (int bin = BIN_COUNT - 1; bin > 0; bin--) {
+            include(sweep, 0, binBounds, bin);
+            count += binCounts[bin];
+            rightCosts[bin] = count * surfaceArea(sweep);
+        }
+
+        sweep = emptyBounds(1);
+        count = 0;
+        int bestBin = 0;
+        double bestCost = Double.POSITIVE_INFINITY;
+        for (int bin = 0; bin < BIN_COUNT - 1; bin++) {
+            include(sweep, 0, binBounds, bin);
+            count += binCounts[bin];
+            double cost = count * surfaceArea(sweep) + rightCosts[bin + 1];
+            if (count > 0 && count < to - from && cost < bestCost) {
+                bestCost = cost;
+                bestBin = bin;
+            }
+        }
+
+        // partition in place, boxes in bins up to and including the best bin go left
+        int i = from;
+        int j = to - 1;
+        while (i <= j) {
+            if (bin(order[i], axis, min, scale) <= bestBin) {
+                i++;
+            } else {
+                int swap = order[i];
+                order[i] = order[j];
+                order[j] = swap;
+                j--;
+            }
+        }
+        return i;
+    }
+
+    private int bin(int box, int axis, double min, double scale) {
+        int bin = (int) ((centroids[box * 3 + axis] - min) * scale);
+        return Math.min(bin, BIN_COUNT - 1);
+    }
+
+    private static double[] emptyBounds(int count) {
+        double[] result = new double[count * 6];
+        for (int i = 0; i < count; i++) {
+            for (int axis = 0; axis < 3; axis++) {
+                result[i * 6 + axis] = Double.POSITIVE_INFINITY;
+                result[i * 6 + 3 + axis] = Double.NEGATIVE_INFINITY;
+            }
+        }
+        return result;
+    }
+
+    // Grows target[index] to include source[other]
+    private static void include(double[] target, int index, double[] source, int other) {
+        for (int axis = 0; axis < 3; axis++) {
+            target[index * 6 + axis] = Math.min(target[index * 6 + axis], source[other * 6 + axis]);
+            target[index * 6 + 3 + axis] = Math.max(target[index * 6 + 3 + axis], source[other * 6 + 3 + axis]);
+        }
+    }
+
+    private static double surfaceArea(double[] bounds) {
+        double x = bounds[3] - bounds[0];
+        double y = bounds[4] - bounds[1];
+        double z = bounds[5] - bounds[2];
+        return 2 * (x * y + x * z + y * z);
+    }
+}
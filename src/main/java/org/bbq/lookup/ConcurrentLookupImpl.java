@@ -0,0 +1,121 @@
+package org.bbq.lookup;
+
+import org.bbq.BoundingBox;
+import org.bbq.QueryItem;
+import org.bbq.Vec;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.List;
+import java.util.Spliterator;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BiConsumer;
+import java.util.function.BiPredicate;
+import java.util.function.Consumer;
+
+/**
+ * A thread-safe lookup publishing {@link TreeLookupImpl}s that are never modified once published.
+ * <p>
+ *     Reads query the tree published last without locking. Writes copy the tree, which shares its immutable nodes,
+ *     modify the copy by path copying and publish it with a compare-and-set, retrying against the newer tree if
+ *     another write was published in the meantime. Every read sees all writes published before it started, and
+ *     nothing written after.
+ * </p>
+ */
+class ConcurrentLookupImpl<T> implements BoundingBoxLookup<T> {
+
+    private final AtomicReference<TreeLookupImpl<T>> tree = new AtomicReference<>(new TreeLookupImpl<>());
+
+    ConcurrentLookupImpl() {
+    }
+
+    @Override
+    public void insert(T value, BoundingBox boundingBox) {
+        write(tree -> tree.insert(value, boundingBox));
+    }
+
+    @Override
+    public void remove(T value, BoundingBox boundingBox) {
+        write(tree -> tree.remove(value, boundingBox));
+    }
+
+    @Override
+    public void remove(T value) {
+        // every entry of the value is removed from the same tree, so no read sees only some of them removed
+        write(tree -> tree.remove(value));
+    }
+
+    @Override
+    public void update(T value, BoundingBox oldBoundingBox, BoundingBox newBoundingBox) {
+        write(tree -> tree.update(value, oldBoundingBox, newBoundingBox));
+    }
+
+    @Override
+    public int size() {
+        return tree.get().size();
+    }
+
+    /**
+     * Published trees are never modified, so the tree published last is the snapshot.
+     */
+    @Override
+    public BoundingBoxLookup<T> snapshot() {
+        return new ReadOnlyLookupImpl<>(tree.get());
+    }
+
+    @Override
+    public @NotNull Iterable<Entry<T>> visit(QueryItem queryItem) {
+        return tree.get().visit(queryItem);
+    }
+
+    @Override
+    public boolean visitUntil(QueryItem queryItem, BiPredicate<? super T, ? super BoundingBox> visitor) {
+        return tree.get().visitUntil(queryItem, visitor);
+    }
+
+    @Override
+    public int count(QueryItem queryItem) {
+        return tree.get().count(queryItem);
+    }
+
+    @Override
+    public @NotNull Spliterator<Entry<T>> spliterator(QueryItem queryItem) {
+        return tree.get().spliterator(queryItem);
+    }
+
+    @Override
+    public @Nullable Hit<T> raycast(Vec origin, Vec direction, double maxDistance) {
+        return tree.get().raycast(origin, direction, maxDistance);
+    }
+
+    @Override
+    public @NotNull List<Hit<T>> raycastAll(Vec origin, Vec direction, double maxDistance) {
+        return tree.get().raycastAll(origin, direction, maxDistance);
+    }
+
+    @Override
+    public @NotNull List<Entry<T>> nearest(Vec point, int k) {
+        return tree.get().nearest(point, k);
+    }
+
+    @Override
+    public void visitAll(List<QueryItem> queries, BatchConsumer<T> sink) {
+        tree.get().visitAll(queries, sink);
+    }
+
+    @Override
+    public void forEachOverlappingPair(BiConsumer<Entry<T>, Entry<T>> consumer) {
+        tree.get().forEachOverlappingPair(consumer);
+    }
+
+    private void write(Consumer<TreeLookupImpl<T>> modification) {
+        while (true) {
+            TreeLookupImpl<T> current = tree.get();
+            TreeLookupImpl<T> modified = current.copy();
+            modification.accept(modified);
+            if (tree.compareAndSet(current, modified)) {
+                return;
+            }
+        }
+    }
+}
@@ -0,0 +1,896 @@
+package org.bbq.lookup;
+
+import org.bbq.BoundingBox;
+import org.bbq.QueryItem;
+import org.bbq.Vec;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.Spliterator;
+import java.util.function.BiConsumer;
+import java.util.function.BiPredicate;
+import java.util.function.Consumer;
+
+/**
+ * A mutable bounding volume hierarchy in the style of the Box2D dynamic tree.
+ * <p>
+ *     Nodes live in a pool of primitive arrays and are addressed by index, freed nodes are kept on a free list and
+ *     reused by later inserts. Once the pool has grown to fit the working set, inserting and removing entries does
+ *     not allocate. The tree is kept height balanced with rotations as leaves are inserted and removed.
+ * </p>
+ * <p>
+ *     Leaves are enlarged by a margin and in the direction of their last move, so an {@link #update} that stays
+ *     within the enlarged bounds does not change the tree at all.
+ * </p>
+ * <p>
+ *     Node bounds are stored as floats, rounded outwards so they still contain everything below them. Compact trees
+ *     also store the boxes of their entries as rounded floats instead of keeping the {@link BoundingBox} objects, so
+ *     entries are reported with boxes that may be slightly larger than the ones they were inserted with.
+ * </p>
+ */
+class DynamicTreeLookupImpl<T> implements BoundingBoxLookup<T> {
+
+    private static final int NULL = -1;
+    private static final int STRIDE = 6;
+    private static final int INITIAL_CAPACITY = 16;
+
+    /**
+     * Default distance leaves are enlarged by in every direction
+     */
+    static final double DEFAULT_MARGIN = Double.parseDouble(System.getProperty("tree.margin", "0.1"));
+    /**
+     * How far ahead of a move leaves are enlarged, in multiples of the move
+     */
+    private static final double DISPLACEMENT_MULTIPLIER = 4;
+
+    private final double margin;
+    private final boolean compact;
+
+    private int root = NULL;
+    private int freeList = NULL;
+    private int size = 0;
+
+    // minX, minY, minZ, maxX, maxY, maxZ per node
+    private float[] bounds = new float[0];
+    // the next free node for nodes on the free list
+    private int[] parent = new int[0];
+    private int[] left = new int[0];
+    // the slot of the leaf's box in leafBounds for leaves of compact trees
+    private int[] right = new int[0];
+    // 0 for leaves, -1 for free nodes
+    private int[] height = new int[0];
+    private Object[] values = new Object[0];
+    // the boxes of the entries, compact trees keep them in leafBounds instead with the same layout as bounds
+    private BoundingBox[] boxes = new BoundingBox[0];
+    // a slab with a slot per leaf, so branches take no space in it
+    private float[] leafBounds = new float[0];
+    private int slotCount = 0;
+    private int[] freeSlots = new int[0];
+    private int freeSlotCount = 0;
+
+    DynamicTreeLookupImpl() {
+        this(DEFAULT_MARGIN);
+    }
+
+    DynamicTreeLookupImpl(double margin) {
+        this(margin, false);
+    }
+
+    DynamicTreeLookupImpl(double margin, boolean compact) {
+        // fat bounds smaller than the box, or not numbers at all, would hide entries from queries
+        if (!(margin >= 0) || Double.isInfinite(margin)) {
+            throw new IllegalArgumentException("Margin must be non-negative and finite: " + margin);
+        }
+        this.margin = margin;
+        this.compact = compact;
+        grow(INITIAL_CAPACITY);
+    }
+
+    @Override
+    public void insert(T value, BoundingBox boundingBox) {
+        int leaf = allocateNode();
+        values[leaf] = value;
+        setBox(leaf, boundingBox);
+        setFatBounds(leaf, boundingBox, 0, 0, 0);
+        insertLeaf(leaf);
+        size++;
+    }
+
+    @Override
+    public void update(T value, BoundingBox oldBoundingBox, BoundingBox newBoundingBox) {
+        int leaf = findLeaf(root, value, oldBoundingBox);
+        if (leaf == NULL) {
+            insert(value, newBoundingBox);
+            return;
+        }
+        setBox(leaf, newBoundingBox);
+        if (contains(leaf, newBoundingBox)) {
+            // still within the enlarged bounds
+            return;
+        }
+
+        removeLeaf(leaf);
+        setFatBounds(leaf, newBoundingBox,
+                newBoundingBox.min().x() - oldBoundingBox.min().x(),
+                newBoundingBox.min().y() - oldBoundingBox.min().y(),
+                newBoundingBox.min().z() - oldBoundingBox.min().z());
+        insertLeaf(leaf);
+    }
+
+    @Override
+    public void remove(T value, BoundingBox boundingBox) {
+        int leaf = findLeaf(root, value, boundingBox);
+        if (leaf == NULL) {
+            return;
+        }
+        removeLeaf(leaf);
+        freeNode(leaf);
+        size--;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public @NotNull Iterable<Entry<T>> visit(QueryItem queryItem) {
+        return () -> new Iterator<>() {
+
+            private int[] stack = new int[32];
+            private int stackSize = 0;
+            private int next = NULL;
+
+            {
+                if (root != NULL) {
+                    stack[stackSize++] = root;
+                }
+                advance();
+            }
+
+            // Moves to the next intersecting leaf
+            private void advance() {
+                next = NULL;
+                while (stackSize > 0) {
+                    int node = stack[--stackSize];
+                    if (!intersects(node, queryItem)) {
+                        continue;
+                    }
+                    if (isLeaf(node)) {
+                        if (leafIntersects(node, queryItem)) {
+                            next = node;
+                            return;
+                        }
+                        continue;
+                    }
+                    if (stackSize + 2 > stack.length) {
+                        stack = Arrays.copyOf(stack, stack.length * 2);
+                    }
+                    stack[stackSize++] = right[node];
+                    stack[stackSize++] = left[node];
+                }
+            }
+
+            @Override
+            public boolean hasNext() {
+                return next != NULL;
+            }
+
+            @Override
+            public Entry<T> next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException("No more elements");
+                }
+                Entry<T> entry = new Entry<>(value(next), box(next));
+                advance();
+                return entry;
+            }
+        };
+    }
+
+    @Override
+    public @NotNull Spliterator<Entry<T>> spliterator(QueryItem queryItem) {
+        NodeSpliterator spliterator = new NodeSpliterator(queryItem, size, queryItem instanceof QueryItem.All);
+        if (root != NULL) {
+            spliterator.push(root);
+        }
+        return spliterator;
+    }
+
+    /**
+     * Traverses the tree depth first like {@link #visit}, with the pending nodes in {@code [bottom, top)} of the
+     * stack. Splitting hands off the node at the bottom, the sibling of the highest node descended into, or splits the
+     * last node into its children. The size is estimated like {@link java.util.Spliterators.AbstractSpliterator},
+     * halving on each split, and is exact for {@link QueryItem#ALL} until the first split.
+     */
+    private final class NodeSpliterator implements Spliterator<Entry<T>> {
+
+        private final QueryItem queryItem;
+        private int[] stack = new int[32];
+        private int bottom = 0;
+        private int top = 0;
+        private long estimate;
+        private boolean sized;
+
+        private NodeSpliterator(QueryItem queryItem, long estimate, boolean sized) {
+            this.queryItem = queryItem;
+            this.estimate = estimate;
+            this.sized = sized;
+        }
+
+        private void push(int node) {
+            if (top == stack.length) {
+                if (bottom > stack.length / 2) {
+                    System.arraycopy(stack, bottom, stack, 0, top - bottom);
+                    top -= bottom;
+                    bottom = 0;
+                } else {
+                    stack = Arrays.copyOf(stack, stack.length * 2);
+                }
+            }
+            stack[top++] = node;
+        }
+
+        @Override
+        public boolean tryAdvance(Consumer<? super Entry<T>> action) {
+            while (top > bottom) {
+                int node = stack[--top];
+                if (!intersects(node, queryItem)) {
+                    continue;
+                }
+                if (isLeaf(node)) {
+                    if (leafIntersects(node, queryItem)) {
+                        if (sized) {
+                            estimate--;
+                        }
+                        action.accept(new Entry<>(value(node), box(node)));
+                        return true;
+                    }
+                    continue;
+                }
+                push(right[node]);
+                push(left[node]);
+            }
+            return false;
+        }
+
+        @Override
+        public Spliterator<Entry<T>> trySplit() {
+            while (top - bottom == 1 && !isLeaf(stack[bottom])) {
+                int node = stack[bottom];
+                top = bottom;
+                if (intersects(node, queryItem)) {
+                    push(right[node]);
+                    push(left[node]);
+                }
+            }
+            if (top - bottom < 2) {
+                return null;
+            }
+            sized = false;
+            estimate >>>= 1;
+            NodeSpliterator split = new NodeSpliterator(queryItem, estimate, false);
+            split.push(stack[bottom++]);
+            return split;
+        }
+
+        @Override
+        public long estimateSize() {
+            return estimate;
+        }
+
+        @Override
+        public int characteristics() {
+            return sized ? NONNULL | SIZED : NONNULL;
+        }
+    }
+
+    @Override
+    public boolean visitUntil(QueryItem queryItem, BiPredicate<? super T, ? super BoundingBox> visitor) {
+        return root != NULL && queryNode(root, queryItem, visitor);
+    }
+
+    @Override
+    public void visitAll(List<QueryItem> queries, BatchConsumer<T> sink) {
+        if (root == NULL) {
+            return;
+        }
+        QueryBatch batch = new QueryBatch(queries);
+        for (int packet = 0; packet < batch.packetCount(); packet++) {
+            queryPacket(root, batch, 0, batch.packet(packet), sink);
+        }
+    }
+
+    // The queries active for the node are in [from, to) of the batch
+    private void queryPacket(int node, QueryBatch batch, int from, int to, BatchConsumer<T> sink) {
+        int offset = node * STRIDE;
+        int end = batch.filter(from, to,
+                bounds[offset], bounds[offset + 1], bounds[offset + 2],
+                bounds[offset + 3], bounds[offset + 4], bounds[offset + 5]);
+        if (end == to) {
+            return;
+        }
+        if (isLeaf(node)) {
+            // the fat bounds were hit, the entry itself may not be
+            BoundingBox boundingBox = box(node);
+            Entry<T> entry = null;
+            for (int i = to; i < end; i++) {
+                if (boundingBox.intersects(batch.query(i))) {
+                    if (entry == null) {
+                        entry = new Entry<>(value(node), boundingBox);
+                    }
+                    sink.accept(batch.index(i), entry);
+                }
+            }
+            return;
+        }
+        queryPacket(left[node], batch, to, end, sink);
+        queryPacket(right[node], batch, to, end, sink);
+    }
+
+    /**
+     * Traverses the tree against itself, so only subtrees with intersecting bounds are ever compared.
+     */
+    @Override
+    public void forEachOverlappingPair(BiConsumer<Entry<T>, Entry<T>> consumer) {
+        if (root != NULL) {
+            selfPairs(root, consumer);
+        }
+    }
+
+    private void selfPairs(int node, BiConsumer<Entry<T>, Entry<T>> consumer) {
+        if (isLeaf(node)) {
+            return;
+        }
+        selfPairs(left[node], consumer);
+        selfPairs(right[node], consumer);
+        pairs(left[node], right[node], consumer);
+    }
+
+    private void pairs(int a, int b, BiConsumer<Entry<T>, Entry<T>> consumer) {
+        if (!overlaps(a, b)) {
+            return;
+        }
+        boolean leafA = isLeaf(a);
+        boolean leafB = isLeaf(b);
+        if (leafA && leafB) {
+            // the fat bounds overlap, the entries themselves may not
+            if (leavesIntersect(a, b)) {
+                consumer.accept(new Entry<>(value(a), box(a)), new Entry<>(value(b), box(b)));
+            }
+        } else if (leafB || (!leafA && area(a) > area(b))) {
+            // descend into the larger subtree
+            pairs(left[a], b, consumer);
+            pairs(right[a], b, consumer);
+        } else {
+            pairs(a, left[b], consumer);
+            pairs(a, right[b], consumer);
+        }
+    }
+
+    private boolean overlaps(int a, int b) {
+        int offsetA = a * STRIDE;
+        int offsetB = b * STRIDE;
+        for (int i = 0; i < 3; i++) {
+            if (bounds[offsetA + i] > bounds[offsetB + 3 + i] || bounds[offsetB + i] > bounds[offsetA + 3 + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public @Nullable Hit<T> raycast(Vec origin, Vec direction, double maxDistance) {
+        Ray<T> ray = new Ray<>(origin, direction, maxDistance);
+        if (root != NULL) {
+            raycastNode(root, ray, distance(root, ray));
+        }
+        return ray.result();
+    }
+
+    // Descends into the nearer child first, so the hits found there prune the other child
+    private void raycastNode(int node, Ray<T> ray, double distance) {
+        if (!ray.reaches(distance)) {
+            return;
+        }
+        if (isLeaf(node)) {
+            // the fat bounds were hit, the entry itself may not be
+            ray.test(value(node), box(node));
+            return;
+        }
+        double leftDistance = distance(left[node], ray);
+        double rightDistance = distance(right[node], ray);
+        if (leftDistance <= rightDistance) {
+            raycastNode(left[node], ray, leftDistance);
+            raycastNode(right[node], ray, rightDistance);
+        } else {
+            raycastNode(right[node], ray, rightDistance);
+            raycastNode(left[node], ray, leftDistance);
+        }
+    }
+
+    @Override
+    public @NotNull List<Entry<T>> nearest(Vec point, int k) {
+        Nearest<T> nearest = new Nearest<>(point, k);
+        if (root == NULL) {
+            return nearest.result();
+        }
+
+        // best-first, nodes are expanded nearest first until the nearest remaining node is further than the kth entry
+        NodeQueue queue = new NodeQueue();
+        queue.add(root, distanceSquared(root, point));
+        while (!queue.isEmpty() && queue.peekDistance() < nearest.bound()) {
+            int node = queue.poll();
+            if (isLeaf(node)) {
+                nearest.offer(value(node), box(node));
+            } else {
+                queue.add(left[node], distanceSquared(left[node], point));
+                queue.add(right[node], distanceSquared(right[node], point));
+            }
+        }
+        return nearest.result();
+    }
+
+    private double distanceSquared(int node, Vec point) {
+        int offset = node * STRIDE;
+        return BoundingBox.distanceSquared(
+                bounds[offset], bounds[offset + 1], bounds[offset + 2],
+                bounds[offset + 3], bounds[offset + 4], bounds[offset + 5],
+                point
+        );
+    }
+
+    private double distance(int node, Ray<T> ray) {
+        int offset = node * STRIDE;
+        return ray.distance(
+                bounds[offset], bounds[offset + 1], bounds[offset + 2],
+                bounds[offset + 3], bounds[offset + 4], bounds[offset + 5]
+        );
+    }
+
+    // Recursion keeps the traversal stack on the thread's stack, so queries stay reentrant without allocating
+    private boolean queryNode(int node, QueryItem queryItem, BiPredicate<? super T, ? super BoundingBox> visitor) {
+        if (!intersects(node, queryItem)) {
+            return false;
+        }
+        if (isLeaf(node)) {
+            return leafIntersects(node, queryItem) && visitor.test(value(node), box(node));
+        }
+        return queryNode(left[node], queryItem, visitor) || queryNode(right[node], queryItem, visitor);
+    }
+
+    private int findLeaf(int node, T value, BoundingBox boundingBox) {
+        if (node == NULL || !contains(node, boundingBox)) {
+            return NULL;
+        }
+        if (isLeaf(node)) {
+            return hasBox(node, boundingBox) && Objects.equals(values[node], value) ? node : NULL;
+        }
+        int leaf = findLeaf(left[node], value, boundingBox);
+        return leaf != NULL ? leaf : findLeaf(right[node], value, boundingBox);
+    }
+
+    private void insertLeaf(int leaf) {
+        if (root == NULL) {
+            root = leaf;
+            parent[leaf] = NULL;
+            return;
+        }
+
+        // descend towards the sibling that increases the total surface area the least
+        int index = root;
+        while (!isLeaf(index)) {
+            int child1 = left[index];
+            int child2 = right[index];
+
+            double area = area(index);
+            double combinedArea = unionArea(index, leaf);
+
+            // cost of creating a new parent for this node and the new leaf
+            double cost = 2 * combinedArea;
+            // minimum cost of pushing the leaf further down the tree
+            double inheritanceCost = 2 * (combinedArea - area);
+
+            double cost1 = descendCost(child1, leaf) + inheritanceCost;
+            double cost2 = descendCost(child2, leaf) + inheritanceCost;
+
+            if (cost < cost1 && cost < cost2) {
+                break;
+            }
+            index = cost1 < cost2 ? child1 : child2;
+        }
+        int sibling = index;
+
+        // create a new parent for the sibling and the leaf
+        int oldParent = parent[sibling];
+        int newParent = allocateNode();
+        parent[newParent] = oldParent;
+        union(newParent, leaf, sibling);
+        height[newParent] = height[sibling] + 1;
+
+        if (oldParent != NULL) {
+            replaceChild(oldParent, sibling, newParent);
+        } else {
+            root = newParent;
+        }
+        left[newParent] = sibling;
+        right[newParent] = leaf;
+        parent[sibling] = newParent;
+        parent[leaf] = newParent;
+
+        refit(parent[leaf]);
+    }
+
+    private double descendCost(int child, int leaf) {
+        if (isLeaf(child)) {
+            return unionArea(child, leaf);
+        }
+        return unionArea(child, leaf) - area(child);
+    }
+
+    private void removeLeaf(int leaf) {
+        if (leaf == root) {
+            root = NULL;
+            return;
+        }
+
+        int leafParent = parent[leaf];
+        int grandParent = parent[leafParent];
+        int sibling = left[leafParent] == leaf ? right[leafParent] : left[leafParent];
+
+        // the sibling takes the place of the parent
+        if (grandParent != NULL) {
+            replaceChild(grandParent, leafParent, sibling);
+            parent[sibling] = grandParent;
+            freeNode(leafParent);
+            refit(grandParent);
+        } else {
+            root = sibling;
+            parent[sibling] = NULL;
+            freeNode(leafParent);
+        }
+    }
+
+    // Walks from the given node to the root, rebalancing and fitting bounds and heights to the children
+    private void refit(int index) {
+        while (index != NULL) {
+            index = balance(index);
+
+            int child1 = left[index];
+            int child2 = right[index];
+            height[index] = 1 + Math.max(height[child1], height[child2]);
+            union(index, child1, child2);
+
+            index = parent[index];
+        }
+    }
+
+    /**
+     * Performs a left or right rotation if node A is imbalanced.
+     * @return The node that took the place of A.
+     */
+    private int balance(int a) {
+        if (isLeaf(a) || height[a] < 2) {
+            return a;
+        }
+
+        int b = left[a];
+        int c = right[a];
+        int balance = height[c] - height[b];
+
+        // rotate C up
+        if (balance > 1) {
+            int f = left[c];
+            int g = right[c];
+
+            // swap A and C
+            left[c] = a;
+            parent[c] = parent[a];
+            parent[a] = c;
+
+            // A's old parent should point to C
+            if (parent[c] != NULL) {
+                replaceChild(parent[c], a, c);
+            } else {
+                root = c;
+            }
+
+            if (height[f] > height[g]) {
+                right[c] = f;
+                right[a] = g;
+                parent[g] = a;
+                union(a, b, g);
+                union(c, a, f);
+                height[a] = 1 + Math.max(height[b], height[g]);
+                height[c] = 1 + Math.max(height[a], height[f]);
+            } else {
+                right[c] = g;
+                right[a] = f;
+                parent[f] = a;
+                union(a, b, f);
+                union(c, a, g);
+                height[a] = 1 + Math.max(height[b], height[f]);
+                height[c] = 1 + Math.max(height[a], height[g]);
+            }
+            return c;
+        }
+
+        // rotate B up
+        if (balance < -1) {
+            int d = left[b];
+            int e = right[b];
+
+            // swap A and B
+            left[b] = a;
+            parent[b] = parent[a];
+            parent[a] = b;
+
+            // A's old parent should point to B
+            if (parent[b] != NULL) {
+                replaceChild(parent[b], a, b);
+            } else {
+                root = b;
+            }
+
+            if (height[d] > height[e]) {
+                right[b] = d;
+                left[a] = e;
+                parent[e] = a;
+                union(a, c, e);
+                union(b, a, d);
+                height[a] = 1 + Math.max(height[c], height[e]);
+                height[b] = 1 + Math.max(height[a], height[d]);
+            } else {
+                right[b] = e;
+                left[a] = d;
+                parent[d] = a;
+                union(a, c, d);
+                union(b, a, e);
+                height[a] = 1 + Math.max(height[c], height[d]);
+                height[b] = 1 + Math.max(height[a], height[e]);
+            }
+            return b;
+        }
+
+        return a;
+    }
+
+    private void replaceChild(int node, int oldChild, int newChild) {
+        if (left[node] == oldChild) {
+            left[node] = newChild;
+        } else {
+            right[node] = newChild;
+        }
+    }
+
+    /**
+     * @return The number of nodes on the longest path from the root to a leaf, {@code 0} if the tree is empty.
+     */
+    public int depth() {
+        return root == NULL ? 0 : height[root] + 1;
+    }
+
+    // Node pool
+
+    private int allocateNode() {
+        if (freeList == NULL) {
+            grow(parent.length * 2);
+        }
+        int node = freeList;
+        freeList = parent[node];
+        parent[node] = NULL;
+        left[node] = NULL;
+        right[node] = NULL;
+        height[node] = 0;
+        return node;
+    }
+
+    private void freeNode(int node) {
+        parent[node] = freeList;
+        height[node] = -1;
+        values[node] = null;
+        if (!compact) {
+            boxes[node] = null;
+        } else if (isLeaf(node)) {
+            freeSlot(right[node]);
+        }
+        freeList = node;
+    }
+
+    private int allocateSlot() {
+        if (freeSlotCount > 0) {
+            return freeSlots[--freeSlotCount];
+        }
+        if ((slotCount + 1) * STRIDE > leafBounds.length) {
+            leafBounds = Arrays.copyOf(leafBounds, Math.max(leafBounds.length * 2, INITIAL_CAPACITY * STRIDE));
+        }
+        return slotCount++;
+    }
+
+    private void freeSlot(int slot) {
+        if (freeSlotCount == freeSlots.length) {
+            freeSlots = Arrays.copyOf(freeSlots, Math.max(freeSlotCount * 2, INITIAL_CAPACITY));
+        }
+        freeSlots[freeSlotCount++] = slot;
+    }
+
+    private void grow(int capacity) {
+        int oldCapacity = parent.length;
+        bounds = Arrays.copyOf(bounds, capacity * STRIDE);
+        parent = Arrays.copyOf(parent, capacity);
+        left = Arrays.copyOf(left, capacity);
+        right = Arrays.copyOf(right, capacity);
+        height = Arrays.copyOf(height, capacity);
+        values = Arrays.copyOf(values, capacity);
+        if (!compact) {
+            boxes = Arrays.copyOf(boxes, capacity);
+        }
+
+        // link the new nodes into the free list
+        for (int node = capacity - 1; node >= oldCapacity; node--) {
+            parent[node] = freeList;
+            height[node] = -1;
+            freeList = node;
+        }
+    }
+
+    // Node bounds
+
+    private boolean isLeaf(int node) {
+        return left[node] == NULL;
+    }
+
+    @SuppressWarnings("unchecked")
+    private T value(int node) {
+        return (T) values[node];
+    }
+
+    // Sets the bounds of a leaf to the box enlarged by the margin, and stretched ahead of the given move
+    private void setFatBounds(int node, BoundingBox boundingBox, double dx, double dy, double dz) {
+        int offset = node * STRIDE;
+        bounds[offset] = roundDown(boundingBox.min().x() - margin + Math.min(dx * DISPLACEMENT_MULTIPLIER, 0));
+        bounds[offset + 1] = roundDown(boundingBox.min().y() - margin + Math.min(dy * DISPLACEMENT_MULTIPLIER, 0));
+        bounds[offset + 2] = roundDown(boundingBox.min().z() - margin + Math.min(dz * DISPLACEMENT_MULTIPLIER, 0));
+        bounds[offset + 3] = roundUp(boundingBox.max().x() + margin + Math.max(dx * DISPLACEMENT_MULTIPLIER, 0));
+        bounds[offset + 4] = roundUp(boundingBox.max().y() + margin + Math.max(dy * DISPLACEMENT_MULTIPLIER, 0));
+        bounds[offset + 5] = roundUp(boundingBox.max().z() + margin + Math.max(dz * DISPLACEMENT_MULTIPLIER, 0));
+    }
+
+    // The nearest float at or below the value
+    private static float roundDown(double value) {
+        float rounded = (float) value;
+        return rounded > value ? Math.nextDown(rounded) : rounded;
+    }
+
+    // The nearest float at or above the value
+    private static float roundUp(double value) {
+        float rounded = (float) value;
+        return rounded < value ? Math.nextUp(rounded) : rounded;
+    }
+
+    // Leaf boxes
+
+    private void setBox(int node, BoundingBox boundingBox) {
+        if (!compact) {
+            boxes[node] = boundingBox;
+            return;
+        }
+        if (right[node] == NULL) {
+            right[node] = allocateSlot();
+        }
+        int offset = right[node] * STRIDE;
+        leafBounds[offset] = roundDown(boundingBox.min().x());
+        leafBounds[offset + 1] = roundDown(boundingBox.min().y());
+        leafBounds[offset + 2] = roundDown(boundingBox.min().z());
+        leafBounds[offset + 3] = roundUp(boundingBox.max().x());
+        leafBounds[offset + 4] = roundUp(boundingBox.max().y());
+        leafBounds[offset + 5] = roundUp(boundingBox.max().z());
+    }
+
+    // The box of the entry of a leaf, created from the rounded bounds for compact trees
+    private BoundingBox box(int node) {
+        if (!compact) {
+            return boxes[node];
+        }
+        int offset = right[node] * STRIDE;
+        return new BoundingBox(
+                new Vec(leafBounds[offset], leafBounds[offset + 1], leafBounds[offset + 2]),
+                new Vec(leafBounds[offset + 3], leafBounds[offset + 4], leafBounds[offset + 5])
+        );
+    }
+
+    // Compact trees only tell boxes apart as far as they differ once rounded
+    private boolean hasBox(int node, BoundingBox boundingBox) {
+        if (!compact) {
+            return boxes[node].equals(boundingBox);
+        }
+        int offset = right[node] * STRIDE;
+        return leafBounds[offset] == roundDown(boundingBox.min().x()) &&
+               leafBounds[offset + 1] == roundDown(boundingBox.min().y()) &&
+               leafBounds[offset + 2] == roundDown(boundingBox.min().z()) &&
+               leafBounds[offset + 3] == roundUp(boundingBox.max().x()) &&
+               leafBounds[offset + 4] == roundUp(boundingBox.max().y()) &&
+               leafBounds[offset + 5] == roundUp(boundingBox.max().z());
+    }
+
+    private boolean leafIntersects(int node, QueryItem queryItem) {
+        if (!compact) {
+            return boxes[node].intersects(queryItem);
+        }
+        int offset = right[node] * STRIDE;
+        return BoundingBox.intersects(
+                leafBounds[offset], leafBounds[offset + 1], leafBounds[offset + 2],
+                leafBounds[offset + 3], leafBounds[offset + 4], leafBounds[offset + 5],
+                queryItem
+        );
+    }
+
+    private boolean leavesIntersect(int a, int b) {
+        if (!compact) {
+            return boxes[a].intersects(boxes[b]);
+        }
+        int offsetA = right[a] * STRIDE;
+        int offsetB = right[b] * STRIDE;
+        for (int i = 0; i < 3; i++) {
+            if (leafBounds[offsetA + i] > leafBounds[offsetB + 3 + i] || leafBounds[offsetB + i] > leafBounds[offsetA + 3 + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Sets the bounds of the node to the union of the bounds of a and b
+    private void union(int node, int a, int b) {
+        int offset = node * STRIDE;
+        int offsetA = a * STRIDE;
+        int offsetB = b * STRIDE;
+        for (int i = 0; i < 3; i++) {
+            bounds[offset + i] = Math.min(bounds[offsetA + i], bounds[offsetB + i]);
+            bounds[offset + 3 + i] = Math.max(bounds[offsetA + 3 + i], bounds[offsetB + 3 + i]);
+        }
+    }
+
+    private double area(int node) {
+        int offset = node * STRIDE;
+        return surfaceArea(
+                bounds[offset + 3] - bounds[offset],
+                bounds[offset + 4] - bounds[offset + 1],
+                bounds[offset + 5] - bounds[offset + 2]
+        );
+    }
+
+    private double unionArea(int a, int b) {
+        int offsetA = a * STRIDE;
+        int offsetB = b * STRIDE;
+        return surfaceArea(
+                Math.max(bounds[offsetA + 3], bounds[offsetB + 3]) - Math.min(bounds[offsetA], bounds[offsetB]),
+                Math.max(bounds[offsetA + 4], bounds[offsetB + 4]) - Math.min(bounds[offsetA + 1], bounds[offsetB + 1]),
+                Math.max(bounds[offsetA + 5], bounds[offsetB + 5]) - Math.min(bounds[offsetA + 2], bounds[offsetB + 2])
+        );
+    }
+
+    private static double surfaceArea(double x, double y, double z) {
+        return 2 * (x * y + x * z + y * z);
+    }
+
+    private boolean contains(int node, BoundingBox boundingBox) {
+        int offset = node * STRIDE;
+        return bounds[offset] <= boundingBox.min().x() && bounds[offset + 3] >= boundingBox.max().x() &&
+               bounds[offset + 1] <= boundingBox.min().y() && bounds[offset + 4] >= boundingBox.max().y() &&
+               bounds[offset + 2] <= boundingBox.min().z() && bounds[offset + 5] >= boundingBox.max().z();
+    }
+
+    private boolean intersects(int node, QueryItem queryItem) {
+        int offset = node * STRIDE;
+        return BoundingBox.intersects(
+                bounds[offset], bounds[offset + 1], bounds[offset + 2],
+                bounds[offset + 3], bounds[offset + 4], bounds[offset + 5],
+                queryItem
+        );
+    }
+}
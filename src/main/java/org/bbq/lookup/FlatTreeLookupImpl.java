@@ -0,0 +1,617 @@
+package org.bbq.lookup;
+
+import org.bbq.BoundingBox;
+import org.bbq.QueryItem;
+import org.bbq.Vec;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.function.BiConsumer;
+import java.util.function.BiPredicate;
+import java.util.function.Consumer;
+
+/**
+ * A bounding volume hierarchy flattened into primitive arrays.
+ * <p>
+ *     Nodes are laid out in depth-first order, so the left child of a node directly follows it and each node stores
+ *     the index to continue at when its subtree is skipped (its escape index). Queries are a single forward loop over
+ *     the arrays without a stack, recursion or object headers to chase.
+ * </p>
+ * <p>
+ *     Entries are kept in slots, found by a map from each distinct entry to its newest slot with older copies chained
+ *     behind it. Inserts append a leaf after the hierarchy, so the nodes are a forest of subtrees one after another,
+ *     which queries walk like the children of a branch. Once more than about the square root of the entries were
+ *     appended, the next query rebuilds the hierarchy using {@link BvhBuilder}. Updates and removals keep the shape
+ *     of the hierarchy and only refit the bounds of its branches, a removed entry leaves an empty leaf behind until
+ *     there are more of them than entries and the next query rebuilds.
+ * </p>
+ */
+class FlatTreeLookupImpl<T> implements BoundingBoxLookup<T> {
+
+    private static final int STRIDE = 6;
+    private static final int NULL = -1;
+    private static final int INITIAL_CAPACITY = 16;
+    // the number of leaves always allowed after the hierarchy before it is rebuilt
+    private static final int MIN_APPENDED = 32;
+
+    // the newest slot of each distinct entry, older copies are chained through next
+    private final Map<Entry<T>, Integer> handles = new HashMap<>();
+    private int[] next = new int[INITIAL_CAPACITY];
+    private int slotCount = 0;
+    private int[] free = new int[INITIAL_CAPACITY];
+    private int freeCount = 0;
+    private int size = 0;
+    // removed entries whose leaves are still in the hierarchy
+    private int emptyLeaves = 0;
+    // leaves appended after the hierarchy since it was built
+    private int appended = 0;
+    // the hierarchy has to be rebuilt
+    private boolean dirty = false;
+    // the bounds of the branches have to be refitted to their leaves
+    private boolean stale = false;
+
+    private int nodeCount = 0;
+    // minX, minY, minZ, maxX, maxY, maxZ per node
+    private double[] bounds = new double[0];
+    private int[] escape = new int[0];
+    // the slot of the entry for leaves, -1 for branches
+    private int[] entry = new int[0];
+    // the leaf node of each slot
+    private int[] leaf = new int[INITIAL_CAPACITY];
+
+    // the entry in each slot, null for free slots
+    private Object[] values = new Object[INITIAL_CAPACITY];
+    private BoundingBox[] boxes = new BoundingBox[INITIAL_CAPACITY];
+    // the slot of each box passed to the builder, during a rebuild
+    private int[] slots;
+
+    FlatTreeLookupImpl() {
+    }
+
+    @Override
+    public void insert(T value, BoundingBox boundingBox) {
+        int slot = allocate();
+        values[slot] = value;
+        boxes[slot] = boundingBox;
+        link(new Entry<>(value, boundingBox), slot);
+        size++;
+        if (dirty) {
+            return;
+        }
+
+        // the leaf is a subtree of its own until the next rebuild
+        if (nodeCount == escape.length) {
+            int capacity = Math.max(nodeCount * 2, INITIAL_CAPACITY);
+            bounds = Arrays.copyOf(bounds, capacity * STRIDE);
+            escape = Arrays.copyOf(escape, capacity);
+            entry = Arrays.copyOf(entry, capacity);
+        }
+        setLeaf(nodeCount, slot);
+        nodeCount++;
+        if (++appended > Math.max(MIN_APPENDED, Math.sqrt(size))) {
+            dirty = true;
+        }
+    }
+
+    @Override
+    public void remove(T value, BoundingBox boundingBox) {
+        int slot = unlink(new Entry<>(value, boundingBox));
+        if (slot == NULL) {
+            return;
+        }
+        values[slot] = null;
+        boxes[slot] = null;
+        size--;
+        if (dirty) {
+            free(slot);
+            return;
+        }
+
+        // the leaf stays in place with bounds nothing intersects, until the empty leaves outnumber the entries. Its
+        // slot is only freed by the rebuild, so inserts appending leaves in the meantime don't share it
+        setEmpty(leaf[slot]);
+        stale = true;
+        if (++emptyLeaves > size) {
+            dirty = true;
+        }
+    }
+
+    @Override
+    public void update(T value, BoundingBox oldBoundingBox, BoundingBox newBoundingBox) {
+        int slot = unlink(new Entry<>(value, oldBoundingBox));
+        if (slot == NULL) {
+            insert(value, newBoundingBox);
+            return;
+        }
+        boxes[slot] = newBoundingBox;
+        link(new Entry<>(value, newBoundingBox), slot);
+        if (dirty) {
+            return;
+        }
+
+        // slots keep their leaf until the next rebuild, so the leaf can be moved in place
+        setBounds(leaf[slot], newBoundingBox);
+        stale = true;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    private int allocate() {
+        if (freeCount > 0) {
+            return free[--freeCount];
+        }
+        if (slotCount == values.length) {
+            int capacity = slotCount * 2;
+            values = Arrays.copyOf(values, capacity);
+            boxes = Arrays.copyOf(boxes, capacity);
+            next = Arrays.copyOf(next, capacity);
+            leaf = Arrays.copyOf(leaf, capacity);
+        }
+        return slotCount++;
+    }
+
+    private void free(int slot) {
+        if (freeCount == free.length) {
+            free = Arrays.copyOf(free, freeCount * 2);
+        }
+        free[freeCount++] = slot;
+    }
+
+    /**
+     * Removes the newest copy of the entry from its chain.
+     * @return The slot of the copy, or {@link #NULL} if there is none.
+     */
+    private int unlink(Entry<T> entry) {
+        Integer slot = handles.get(entry);
+        if (slot == null) {
+            return NULL;
+        }
+        if (next[slot] == NULL) {
+            handles.remove(entry);
+        } else {
+            handles.put(entry, next[slot]);
+        }
+        return slot;
+    }
+
+    private void link(Entry<T> entry, int slot) {
+        Integer newest = handles.put(entry, slot);
+        next[slot] = newest == null ? NULL : newest;
+    }
+
+    @Override
+    public @NotNull Iterable<Entry<T>> visit(QueryItem queryItem) {
+        build();
+        return () -> new Iterator<>() {
+
+            private int node = nextLeaf(0, queryItem);
+
+            @Override
+            public boolean hasNext() {
+                return node < nodeCount;
+            }
+
+            @Override
+            public Entry<T> next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException("No more elements");
+                }
+                int index = entry[node];
+                node = nextLeaf(node + 1, queryItem);
+                return new Entry<>(value(index), boxes[index]);
+            }
+        };
+    }
+
+    @Override
+    public @NotNull Spliterator<Entry<T>> spliterator(QueryItem queryItem) {
+        build();
+        return new NodeSpliterator(queryItem, 0, nodeCount, size, queryItem instanceof QueryItem.All);
+    }
+
+    /**
+     * Walks the nodes in {@code [node, end)} like {@link #visitUntil}, the range always holding whole subtrees.
+     * Splitting hands off the subtrees after the first one, or the right child if a single subtree is left. The size
+     * is estimated like {@link java.util.Spliterators.AbstractSpliterator}, halving on each split, and is exact for
+     * {@link QueryItem#ALL} until the first split.
+     */
+    private final class NodeSpliterator implements Spliterator<Entry<T>> {
+
+        private final QueryItem queryItem;
+        private int node;
+        private int end;
+        private long estimate;
+        private boolean sized;
+
+        private NodeSpliterator(QueryItem queryItem, int node, int end, long estimate, boolean sized) {
+            this.queryItem = queryItem;
+            this.node = node;
+            this.end = end;
+            this.estimate = estimate;
+            this.sized = sized;
+        }
+
+        @Override
+        public boolean tryAdvance(Consumer<? super Entry<T>> action) {
+            node = nextLeaf(node, end, queryItem);
+            if (node >= end) {
+                return false;
+            }
+            int index = entry[node++];
+            if (sized) {
+                estimate--;
+            }
+            action.accept(new Entry<>(value(index), boxes[index]));
+            return true;
+        }
+
+        @Override
+        public Spliterator<Entry<T>> trySplit() {
+            while (node < end) {
+                int subtreeEnd = escape[node];
+                if (subtreeEnd < end) {
+                    sized = false;
+                    estimate >>>= 1;
+                    NodeSpliterator split = new NodeSpliterator(queryItem, subtreeEnd, end, estimate, false);
+                    end = subtreeEnd;
+                    return split;
+                }
+                if (entry[node] >= 0 || !intersects(node, queryItem)) {
+                    return null;
+                }
+                // descend, leaving the subtrees of both children
+                node++;
+            }
+            return null;
+        }
+
+        @Override
+        public long estimateSize() {
+            return estimate;
+        }
+
+        @Override
+        public int characteristics() {
+            return sized ? NONNULL | SIZED : NONNULL;
+        }
+    }
+
+    @Override
+    public boolean visitUntil(QueryItem queryItem, BiPredicate<? super T, ? super BoundingBox> visitor) {
+        build();
+        for (int node = nextLeaf(0, queryItem); node < nodeCount; node = nextLeaf(node + 1, queryItem)) {
+            int index = entry[node];
+            if (visitor.test(value(index), boxes[index])) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public void visitAll(List<QueryItem> queries, BatchConsumer<T> sink) {
+        build();
+        if (nodeCount == 0) {
+            return;
+        }
+        QueryBatch batch = new QueryBatch(queries);
+        for (int packet = 0; packet < batch.packetCount(); packet++) {
+            for (int root = 0; root < nodeCount; root = escape[root]) {
+                queryPacket(root, batch, 0, batch.packet(packet), sink);
+            }
+        }
+    }
+
+    // The queries active for the node are in [from, to) of the batch
+    private void queryPacket(int node, QueryBatch batch, int from, int to, BatchConsumer<T> sink) {
+        int offset = node * STRIDE;
+        int end = batch.filter(from, to,
+                bounds[offset], bounds[offset + 1], bounds[offset + 2],
+                bounds[offset + 3], bounds[offset + 4], bounds[offset + 5]);
+        if (end == to) {
+            return;
+        }
+        int index = entry[node];
+        if (index >= 0) {
+            if (boxes[index] == null) {
+                return;
+            }
+            Entry<T> leaf = new Entry<>(value(index), boxes[index]);
+            for (int i = to; i < end; i++) {
+                sink.accept(batch.index(i), leaf);
+            }
+            return;
+        }
+        queryPacket(node + 1, batch, to, end, sink);
+        queryPacket(escape[node + 1], batch, to, end, sink);
+    }
+
+    /**
+     * Traverses the tree against itself, so only subtrees with intersecting bounds are ever compared. Appended leaves
+     * are compared with the hierarchy and each other the same way.
+     */
+    @Override
+    public void forEachOverlappingPair(BiConsumer<Entry<T>, Entry<T>> consumer) {
+        build();
+        for (int root = 0; root < nodeCount; root = escape[root]) {
+            selfPairs(root, consumer);
+            for (int other = escape[root]; other < nodeCount; other = escape[other]) {
+                pairs(root, other, consumer);
+            }
+        }
+    }
+
+    private void selfPairs(int node, BiConsumer<Entry<T>, Entry<T>> consumer) {
+        if (entry[node] >= 0) {
+            return;
+        }
+        selfPairs(node + 1, consumer);
+        selfPairs(escape[node + 1], consumer);
+        pairs(node + 1, escape[node + 1], consumer);
+    }
+
+    private void pairs(int a, int b, BiConsumer<Entry<T>, Entry<T>> consumer) {
+        if (!overlaps(a, b)) {
+            return;
+        }
+        boolean leafA = entry[a] >= 0;
+        boolean leafB = entry[b] >= 0;
+        if (leafA && leafB) {
+            // empty leaves have bounds nothing overlaps, so both are entries
+            consumer.accept(new Entry<>(value(entry[a]), boxes[entry[a]]), new Entry<>(value(entry[b]), boxes[entry[b]]));
+        } else if (leafB || (!leafA && area(a) > area(b))) {
+            // descend into the larger subtree
+            pairs(a + 1, b, consumer);
+            pairs(escape[a + 1], b, consumer);
+        } else {
+            pairs(a, b + 1, consumer);
+            pairs(a, escape[b + 1], consumer);
+        }
+    }
+
+    private double area(int node) {
+        int offset = node * STRIDE;
+        double x = bounds[offset + 3] - bounds[offset];
+        double y = bounds[offset + 4] - bounds[offset + 1];
+        double z = bounds[offset + 5] - bounds[offset + 2];
+        return 2 * (x * y + x * z + y * z);
+    }
+
+    private boolean overlaps(int a, int b) {
+        int offsetA = a * STRIDE;
+        int offsetB = b * STRIDE;
+        for (int i = 0; i < 3; i++) {
+            if (bounds[offsetA + i] > bounds[offsetB + 3 + i] || bounds[offsetB + i] > bounds[offsetA + 3 + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public @Nullable Hit<T> raycast(Vec origin, Vec direction, double maxDistance) {
+        build();
+        Ray<T> ray = new Ray<>(origin, direction, maxDistance);
+        for (int root = 0; root < nodeCount; root = escape[root]) {
+            raycastNode(root, ray, distance(root, ray));
+        }
+        return ray.result();
+    }
+
+    // Descends into the nearer child first, so the hits found there prune the other child
+    private void raycastNode(int node, Ray<T> ray, double distance) {
+        if (!ray.reaches(distance)) {
+            return;
+        }
+        int index = entry[node];
+        if (index >= 0) {
+            if (boxes[index] != null) {
+                ray.test(value(index), boxes[index]);
+            }
+            return;
+        }
+        // the left child directly follows its parent, the right child follows the left subtree
+        int left = node + 1;
+        int right = escape[left];
+        double leftDistance = distance(left, ray);
+        double rightDistance = distance(right, ray);
+        if (leftDistance <= rightDistance) {
+            raycastNode(left, ray, leftDistance);
+            raycastNode(right, ray, rightDistance);
+        } else {
+            raycastNode(right, ray, rightDistance);
+            raycastNode(left, ray, leftDistance);
+        }
+    }
+
+    @Override
+    public @NotNull List<Entry<T>> nearest(Vec point, int k) {
+        build();
+        Nearest<T> nearest = new Nearest<>(point, k);
+
+        // best-first, nodes are expanded nearest first until the nearest remaining node is further than the kth entry
+        NodeQueue queue = new NodeQueue();
+        for (int root = 0; root < nodeCount; root = escape[root]) {
+            queue.add(root, distanceSquared(root, point));
+        }
+        while (!queue.isEmpty() && queue.peekDistance() < nearest.bound()) {
+            int node = queue.poll();
+            int index = entry[node];
+            if (index >= 0) {
+                if (boxes[index] != null) {
+                    nearest.offer(value(index), boxes[index]);
+                }
+            } else {
+                int right = escape[node + 1];
+                queue.add(node + 1, distanceSquared(node + 1, point));
+                queue.add(right, distanceSquared(right, point));
+            }
+        }
+        return nearest.result();
+    }
+
+    private double distanceSquared(int node, Vec point) {
+        int offset = node * STRIDE;
+        return BoundingBox.distanceSquared(
+                bounds[offset], bounds[offset + 1], bounds[offset + 2],
+                bounds[offset + 3], bounds[offset + 4], bounds[offset + 5],
+                point
+        );
+    }
+
+    private double distance(int node, Ray<T> ray) {
+        int offset = node * STRIDE;
+        return ray.distance(
+                bounds[offset], bounds[offset + 1], bounds[offset + 2],
+                bounds[offset + 3], bounds[offset + 4], bounds[offset + 5]
+        );
+    }
+
+    // Returns the first intersecting leaf at or after the given node, or nodeCount if there is none
+    private int nextLeaf(int node, QueryItem queryItem) {
+        return nextLeaf(node, nodeCount, queryItem);
+    }
+
+    // Returns the first intersecting leaf in [node, end), or end if there is none
+    private int nextLeaf(int node, int end, QueryItem queryItem) {
+        while (node < end) {
+            if (!intersects(node, queryItem)) {
+                node = escape[node];
+            } else if (entry[node] >= 0) {
+                if (boxes[entry[node]] != null) {
+                    return node;
+                }
+                // an empty leaf, only queries for everything get here
+                node++;
+            } else {
+                node++;
+            }
+        }
+        return end;
+    }
+
+    private boolean intersects(int node, QueryItem queryItem) {
+        int offset = node * STRIDE;
+        return BoundingBox.intersects(
+                bounds[offset], bounds[offset + 1], bounds[offset + 2],
+                bounds[offset + 3], bounds[offset + 4], bounds[offset + 5],
+                queryItem
+        );
+    }
+
+    @SuppressWarnings("unchecked")
+    private T value(int index) {
+        return (T) values[index];
+    }
+
+    private void build() {
+        if (!dirty) {
+            if (stale) {
+                refit();
+            }
+            return;
+        }
+        dirty = false;
+        stale = false;
+        emptyLeaves = 0;
+        appended = 0;
+
+        // the hierarchy is built over the occupied slots, in slot order, and every other slot is free again
+        int count = size;
+        slots = new int[count];
+        BoundingBox[] slotBoxes = new BoundingBox[count];
+        freeCount = 0;
+        for (int slot = 0, i = 0; slot < slotCount; slot++) {
+            if (boxes[slot] != null) {
+                slots[i] = slot;
+                slotBoxes[i++] = boxes[slot];
+            } else {
+                free(slot);
+            }
+        }
+
+        nodeCount = Math.max(count * 2 - 1, 0);
+        bounds = new double[nodeCount * STRIDE];
+        escape = new int[nodeCount];
+        entry = new int[nodeCount];
+        if (count > 0) {
+            BvhBuilder.build(slotBoxes, new FlatAssembler());
+        }
+        slots = null;
+    }
+
+    // Children always follow their parent, so walking backwards fits every child before its parent
+    private void refit() {
+        stale = false;
+        for (int node = nodeCount - 1; node >= 0; node--) {
+            if (entry[node] < 0) {
+                fit(node, escape[node + 1]);
+            }
+        }
+    }
+
+    private void fit(int node, int right) {
+        int offset = node * STRIDE;
+        int leftOffset = (node + 1) * STRIDE;
+        int rightOffset = right * STRIDE;
+        for (int i = 0; i < 3; i++) {
+            bounds[offset + i] = Math.min(bounds[leftOffset + i], bounds[rightOffset + i]);
+            bounds[offset + 3 + i] = Math.max(bounds[leftOffset + 3 + i], bounds[rightOffset + 3 + i]);
+        }
+    }
+
+    // Gives the node bounds that nothing intersects, and that the bounds of its parents ignore
+    private void setEmpty(int node) {
+        int offset = node * STRIDE;
+        Arrays.fill(bounds, offset, offset + 3, Double.POSITIVE_INFINITY);
+        Arrays.fill(bounds, offset + 3, offset + 6, Double.NEGATIVE_INFINITY);
+    }
+
+    private void setLeaf(int node, int slot) {
+        setBounds(node, boxes[slot]);
+        entry[node] = slot;
+        leaf[slot] = node;
+        escape[node] = node + 1;
+    }
+
+    private void setBounds(int node, BoundingBox boundingBox) {
+        int offset = node * STRIDE;
+        bounds[offset] = boundingBox.min().x();
+        bounds[offset + 1] = boundingBox.min().y();
+        bounds[offset + 2] = boundingBox.min().z();
+        bounds[offset + 3] = boundingBox.max().x();
+        bounds[offset + 4] = boundingBox.max().y();
+        bounds[offset + 5] = boundingBox.max().z();
+    }
+
+    /**
+     * Writes nodes straight into the arrays, nothing is returned for them.
+     */
+    private final class FlatAssembler implements BvhBuilder.Assembler<Void> {
+
+        @Override
+        public Void leaf(int node, int box) {
+            setLeaf(node, slots[box]);
+            return null;
+        }
+
+        @Override
+        public Void branch(int node, int rightNode, Void left, Void right) {
+            // the right child is assembled already, and its subtree ends where the subtree of the branch does
+            fit(node, rightNode);
+            entry[node] = -1;
+            escape[node] = escape[rightNode];
+            return null;
+        }
+    }
+}
@@ -1,19 +1,36 @@
 package org.bbq.lookup;
 
 import org.bbq.BoundingBox;
+import org.bbq.Line;
 import org.bbq.QueryItem;
+import org.bbq.Sphere;
 import org.bbq.Vec;
-import org.bbq.util.IntCache;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
 import java.util.*;
-import java.util.concurrent.CopyOnWriteArrayList;
-import java.util.function.IntSupplier;
-import java.util.stream.IntStream;
+import java.util.function.BiConsumer;
+import java.util.function.BiPredicate;
+import java.util.function.Consumer;
+import java.util.function.IntConsumer;
 
 /**
  * A lookup implementation with a fixed size grid.
+ * <p>
+ *     The grid either spans fixed bounds, where entries outside of the bounds are kept in the outermost cells, or
+ *     grows its bounds to fit every entry. Growing rebuilds the cells, so the bounds grow by at least their current
+ *     extent in the direction of the entry, and entries moving steadily outwards only rebuild the grid a logarithmic
+ *     number of times.
+ * </p>
+ * <p>
+ *     Entries are stored once in a slab and referenced from each of their cells by their handle, an index into the
+ *     slab. Cells are growable arrays of handles, removing a handle swaps the last handle of the cell into its place.
+ * </p>
+ * <p>
+ *     Cells and the slab are shared with snapshots. Each cell records the version of the lookup it was last copied
+ *     in, and a snapshot starts a new version, so an array from an older version is copied before the lookup
+ *     modifies it.
+ * </p>
  */
 class GridLookupImpl<T> implements BoundingBoxLookup<T> {
 
@@ -22,233 +39,771 @@ class GridLookupImpl<T> implements BoundingBoxLookup<T> {
      */
     private static final int DEFAULT_GRID_SIZE = Integer.parseInt(System.getProperty("grid.size", "16"));
 
+    private static final int[] EMPTY_CELL = new int[0];
+    private static final int NULL = -1;
+    private static final int INITIAL_CAPACITY = 16;
+
     private BoundingBox bounds = BoundingBox.EMPTY;
+    private final boolean fixedBounds;
 
     private final int gridSize;
-    private final List<Entry<T>>[] entries;
-    private final Map<Entry<T>, Integer> allEntries = new HashMap<>();
-
-    private final IntCache size = new IntCache(() -> allEntries.values().stream().mapToInt(Integer::intValue).sum());
+    // the handles in each cell, only the first cellSizes[index] handles of a cell are used
+    private final int[][] cells;
+    private final int[] cellSizes;
+
+    // the entry of each handle, null for free handles
+    private Entry<T>[] slab;
+    private int handleCount = 0;
+    private int[] free = EMPTY_CELL;
+    private int freeCount = 0;
+    // the newest copy of each distinct entry, older copies are chained through next
+    private final Map<Entry<T>, Integer> handles = new HashMap<>();
+    private int[] next;
+    private int size = 0;
+
+    // the version each cell was last copied in, cells of older versions are shared with a snapshot
+    private final int[] cellVersions;
+    private int slabVersion = 0;
+    private int version = 0;
 
     GridLookupImpl() {
         this(DEFAULT_GRID_SIZE);
     }
 
     GridLookupImpl(int gridSize) {
+        this(BoundingBox.EMPTY, gridSize, false);
+    }
+
+    GridLookupImpl(BoundingBox bounds, int gridSize) {
+        this(bounds, gridSize, true);
+    }
+
+    private GridLookupImpl(BoundingBox bounds, int gridSize, boolean fixedBounds) {
+        if (gridSize <= 0) {
+            throw new IllegalArgumentException("Grid size must be positive: " + gridSize);
+        }
+        this.bounds = bounds;
+        this.fixedBounds = fixedBounds;
         this.gridSize = gridSize;
-        //noinspection unchecked
-        this.entries = new List[gridSize * gridSize * gridSize];
-        for (int i = 0; i < entries.length; i++) {
-            entries[i] = new CopyOnWriteArrayList<>();
+        this.cells = new int[gridSize * gridSize * gridSize][];
+        Arrays.fill(cells, EMPTY_CELL);
+        this.cellSizes = new int[cells.length];
+        this.cellVersions = new int[cells.length];
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        Entry<T>[] slab = new Entry[INITIAL_CAPACITY];
+        this.slab = slab;
+        this.next = new int[INITIAL_CAPACITY];
+    }
+
+    // A snapshot sharing the cells and the slab of the lookup, it is only ever queried
+    private GridLookupImpl(GridLookupImpl<T> lookup) {
+        this.bounds = lookup.bounds;
+        this.fixedBounds = lookup.fixedBounds;
+        this.gridSize = lookup.gridSize;
+        this.cells = lookup.cells.clone();
+        this.cellSizes = lookup.cellSizes.clone();
+        this.cellVersions = lookup.cellVersions;
+        this.slab = lookup.slab;
+        this.size = lookup.size;
+    }
+
+    /**
+     * Takes O(cells), the snapshot shares the cells and the slab with the lookup until the lookup modifies them.
+     */
+    @Override
+    public BoundingBoxLookup<T> snapshot() {
+        GridLookupImpl<T> snapshot = new GridLookupImpl<>(this);
+        version++;
+        return new ReadOnlyLookupImpl<>(snapshot);
+    }
+
+    // Returns the handles of the cell at the index, copying them first if they are shared with a snapshot
+    private int[] writableCell(int index) {
+        if (cellVersions[index] != version) {
+            cells[index] = cells[index].clone();
+            cellVersions[index] = version;
+        }
+        return cells[index];
+    }
+
+    // Returns the slab, copying it first if it is shared with a snapshot
+    private Entry<T>[] writableSlab() {
+        if (slabVersion != version) {
+            slab = slab.clone();
+            slabVersion = version;
+        }
+        return slab;
+    }
+
+    private void addToCell(int index, int handle) {
+        int[] cell = writableCell(index);
+        int cellSize = cellSizes[index];
+        if (cellSize == cell.length) {
+            cell = cells[index] = Arrays.copyOf(cell, Math.max(cellSize * 2, 4));
+        }
+        cell[cellSize] = handle;
+        cellSizes[index] = cellSize + 1;
+    }
+
+    private void removeFromCell(int index, int handle) {
+        int[] cell = writableCell(index);
+        int last = cellSizes[index] - 1;
+        for (int i = 0; i <= last; i++) {
+            if (cell[i] == handle) {
+                cell[i] = cell[last];
+                cellSizes[index] = last;
+                return;
+            }
+        }
+    }
+
+    private int allocate() {
+        if (freeCount > 0) {
+            return free[--freeCount];
         }
+        if (handleCount == slab.length) {
+            slab = Arrays.copyOf(slab, handleCount * 2);
+            slabVersion = version;
+            next = Arrays.copyOf(next, handleCount * 2);
+        }
+        return handleCount++;
+    }
+
+    /**
+     * Removes the newest copy of the entry from its chain.
+     * @return The handle of the copy, or {@link #NULL} if there is none.
+     */
+    private int unlink(Entry<T> entry) {
+        Integer handle = handles.get(entry);
+        if (handle == null) {
+            return NULL;
+        }
+        if (next[handle] == NULL) {
+            handles.remove(entry);
+        } else {
+            handles.put(entry, next[handle]);
+        }
+        return handle;
+    }
+
+    private void link(Entry<T> entry, int handle) {
+        Integer newest = handles.put(entry, handle);
+        next[handle] = newest == null ? NULL : newest;
     }
 
     private void tryExpand(BoundingBox boundingBox) {
-        if (this.bounds.contains(boundingBox)) {
+        if (fixedBounds || this.bounds.contains(boundingBox)) {
             // no need to expand
             return;
         }
 
-        for (List<Entry<T>> list : entries) {
-            list.clear();
-        }
-        Map<Entry<T>, Integer> valuesCopy = Map.copyOf(allEntries);
-        allEntries.clear();
+        Vec min = boundingBox.min();
+        Vec max = boundingBox.max();
+        Vec oldMin = bounds.min();
+        Vec oldMax = bounds.max();
+        bounds = new BoundingBox(
+                new Vec(grownMin(oldMin.x(), oldMax.x(), min.x()), grownMin(oldMin.y(), oldMax.y(), min.y()), grownMin(oldMin.z(), oldMax.z(), min.z())),
+                new Vec(grownMax(oldMin.x(), oldMax.x(), max.x()), grownMax(oldMin.y(), oldMax.y(), max.y()), grownMax(oldMin.z(), oldMax.z(), max.z()))
+        );
+        rebuild();
+    }
 
-        bounds = bounds.union(boundingBox);
+    private static double grownMin(double oldMin, double oldMax, double min) {
+        return min < oldMin ? Math.min(min, oldMin - (oldMax - oldMin)) : oldMin;
+    }
 
-        for (var entry : valuesCopy.entrySet()) {
-            Entry<T> entryKey = entry.getKey();
-            for (int i = 0; i < entry.getValue(); i++) {
-                this.insertUnchecked(entryKey);
+    private static double grownMax(double oldMin, double oldMax, double max) {
+        return max > oldMax ? Math.max(max, oldMax + (oldMax - oldMin)) : oldMax;
+    }
+
+    // Redistributes every entry over the cells, each cell is allocated once at its final size
+    private void rebuild() {
+        Arrays.fill(cellSizes, 0);
+        for (int handle = 0; handle < handleCount; handle++) {
+            if (slab[handle] != null) {
+                forEachCell(slab[handle].boundingBox(), index -> cellSizes[index]++);
+            }
+        }
+        for (int i = 0; i < cells.length; i++) {
+            cells[i] = cellSizes[i] == 0 ? EMPTY_CELL : new int[cellSizes[i]];
+            cellSizes[i] = 0;
+            cellVersions[i] = version;
+        }
+        for (int handle = 0; handle < handleCount; handle++) {
+            if (slab[handle] != null) {
+                int entryHandle = handle;
+                forEachCell(slab[handle].boundingBox(), index -> cells[index][cellSizes[index]++] = entryHandle);
             }
         }
     }
 
     @Override
     public void insert(T value, BoundingBox boundingBox) {
-        size.invalidate();
         tryExpand(boundingBox);
 
-        insertUnchecked(new Entry<>(value, boundingBox));
+        Entry<T> entry = new Entry<>(value, boundingBox);
+        int handle = allocate();
+        writableSlab()[handle] = entry;
+        link(entry, handle);
+        size++;
+        forEachCell(boundingBox, index -> addToCell(index, handle));
     }
 
-    private void insertUnchecked(Entry<T> entry) {
-        allEntries.putIfAbsent(entry, 0);
-        allEntries.computeIfPresent(entry, (ignored, integer) -> integer + 1);
+    public void remove(T value, BoundingBox boundingBox) {
+        int handle = unlink(new Entry<>(value, boundingBox));
+        if (handle == NULL) {
+            return;
+        }
 
-        forGridIndicesBB(entry.boundingBox()).forEach(index -> {
-            entries[index].add(entry);
-        });
+        forEachCell(boundingBox, index -> removeFromCell(index, handle));
+        writableSlab()[handle] = null;
+        if (freeCount == free.length) {
+            free = Arrays.copyOf(free, Math.max(freeCount * 2, INITIAL_CAPACITY));
+        }
+        free[freeCount++] = handle;
+        size--;
     }
 
-    public void remove(T value, BoundingBox boundingBox) {
-        size.invalidate();
-        Entry<T> entry = new Entry<>(value, boundingBox);
-        if (!allEntries.containsKey(entry)) {
+    @Override
+    public void update(T value, BoundingBox oldBoundingBox, BoundingBox newBoundingBox) {
+        Entry<T> oldEntry = new Entry<>(value, oldBoundingBox);
+        if (!handles.containsKey(oldEntry) || (!fixedBounds && !bounds.contains(newBoundingBox))) {
+            BoundingBoxLookup.super.update(value, oldBoundingBox, newBoundingBox);
             return;
         }
 
-        allEntries.computeIfPresent(entry, (ignored, integer) -> integer - 1);
-        if (allEntries.get(entry) == 0) {
-            allEntries.remove(entry);
+        int oldMinX = cellX(oldBoundingBox.min().x());
+        int oldMinY = cellY(oldBoundingBox.min().y());
+        int oldMinZ = cellZ(oldBoundingBox.min().z());
+        int oldMaxX = cellX(oldBoundingBox.max().x());
+        int oldMaxY = cellY(oldBoundingBox.max().y());
+        int oldMaxZ = cellZ(oldBoundingBox.max().z());
+
+        int newMinX = cellX(newBoundingBox.min().x());
+        int newMinY = cellY(newBoundingBox.min().y());
+        int newMinZ = cellZ(newBoundingBox.min().z());
+        int newMaxX = cellX(newBoundingBox.max().x());
+        int newMaxY = cellY(newBoundingBox.max().y());
+        int newMaxZ = cellZ(newBoundingBox.max().z());
+
+        if (newMinX > oldMaxX || newMaxX < oldMinX || newMinY > oldMaxY || newMaxY < oldMinY || newMinZ > oldMaxZ || newMaxZ < oldMinZ) {
+            // no cell is shared, walking the cells between the two ranges would cost more than moving the entry
+            BoundingBoxLookup.super.update(value, oldBoundingBox, newBoundingBox);
+            return;
         }
 
-        forGridIndicesBB(boundingBox).forEach(index -> {
-            entries[index].remove(entry);
-        });
+        Entry<T> newEntry = new Entry<>(value, newBoundingBox);
+        int handle = unlink(oldEntry);
+        link(newEntry, handle);
+        writableSlab()[handle] = newEntry;
+
+        // only the cells the entry leaves or enters change, the handle stays in the rest
+        for (int z = oldMinZ; z <= oldMaxZ; z++) {
+            for (int y = oldMinY; y <= oldMaxY; y++) {
+                for (int x = oldMinX; x <= oldMaxX; x++) {
+                    if (x < newMinX || x > newMaxX || y < newMinY || y > newMaxY || z < newMinZ || z > newMaxZ) {
+                        removeFromCell(index(x, y, z), handle);
+                    }
+                }
+            }
+        }
+        for (int z = newMinZ; z <= newMaxZ; z++) {
+            for (int y = newMinY; y <= newMaxY; y++) {
+                for (int x = newMinX; x <= newMaxX; x++) {
+                    if (x < oldMinX || x > oldMaxX || y < oldMinY || y > oldMaxY || z < oldMinZ || z > oldMaxZ) {
+                        addToCell(index(x, y, z), handle);
+                    }
+                }
+            }
+        }
     }
 
     @Override
     public int size() {
-        return size.get();
+        return size;
     }
 
+    /**
+     * Traverses the cells lazily as the iterator is advanced. Entries are only passed on from one of their cells, like
+     * {@link #visitUntil}, so no query needs to remember the entries it has already passed on.
+     */
     @Override
     public @NotNull Iterable<BoundingBoxLookup.Entry<T>> visit(QueryItem queryItem) {
-        Map<Entry<T>, Boolean> visited = new IdentityHashMap<>();
-        var iterator = forGridInstances(queryItem).iterator();
+        return () -> Spliterators.iterator(spliterator(queryItem));
+    }
 
-        Map<Entry<T>, Boolean> unused = new IdentityHashMap<>();
+    @Override
+    public boolean visitUntil(QueryItem queryItem, BiPredicate<? super T, ? super BoundingBox> visitor) {
+        return switch (queryItem) {
+            case BoundingBox boundingBox -> visitCells(boundingBox.min(), boundingBox.max(), queryItem, visitor);
+            case Vec vec -> visitCells(vec, vec, queryItem, visitor);
+            case Line line -> visitLine(line, visitor);
+            case Sphere sphere -> visitCells(sphere.center().sub(sphere.radius()), sphere.center().add(sphere.radius()), queryItem, visitor);
+            case QueryItem.All ignored -> visitCells(bounds.min(), bounds.max(), queryItem, visitor);
+        };
+    }
+
+    @Override
+    public @NotNull Spliterator<Entry<T>> spliterator(QueryItem queryItem) {
+        return switch (queryItem) {
+            case BoundingBox boundingBox -> new CellSpliterator(boundingBox.min(), boundingBox.max(), queryItem);
+            case Vec vec -> new CellSpliterator(vec, vec, queryItem);
+            case Line line -> new LineSpliterator(line);
+            case Sphere sphere -> new CellSpliterator(sphere.center().sub(sphere.radius()), sphere.center().add(sphere.radius()), queryItem);
+            case QueryItem.All ignored -> new CellSpliterator(bounds.min(), bounds.max(), queryItem);
+        };
+    }
+
+    /**
+     * Traverses the cells overlapping a region in the order of {@link #visitCells}, splitting the range of cells in
+     * half. Entries are only passed on from their first cell within the region, so each half passes on its own
+     * entries without coordinating with the other. The size is exact for {@link QueryItem#ALL} until the first split.
+     */
+    private final class CellSpliterator implements Spliterator<Entry<T>> {
+
+        private final QueryItem queryItem;
+        private final int minX, minY, minZ;
+        private final int sizeX, sizeY;
+        private final double entriesPerCell;
+        // the number of entries left, or -1 if unknown
+        private long exactSize;
+
+        // the range of cells left, numbered x first within the region
+        private int position;
+        private int end;
+
+        private int[] cell = EMPTY_CELL;
+        private int cellSize = 0;
+        private int cellIndex = 0;
+        private int x, y, z;
+
+        private CellSpliterator(Vec min, Vec max, QueryItem queryItem) {
+            this.queryItem = queryItem;
+            this.minX = cellX(min.x());
+            this.minY = cellY(min.y());
+            this.minZ = cellZ(min.z());
+            this.sizeX = cellX(max.x()) - minX + 1;
+            this.sizeY = cellY(max.y()) - minY + 1;
+            this.position = 0;
+            this.end = sizeX * sizeY * (cellZ(max.z()) - minZ + 1);
+            this.entriesPerCell = (double) size() / cells.length;
+            this.exactSize = queryItem instanceof QueryItem.All ? size() : -1;
+        }
 
-        return () -> new Iterator<>() {
+        private CellSpliterator(CellSpliterator parent, int position, int end) {
+            this.queryItem = parent.queryItem;
+            this.minX = parent.minX;
+            this.minY = parent.minY;
+            this.minZ = parent.minZ;
+            this.sizeX = parent.sizeX;
+            this.sizeY = parent.sizeY;
+            this.entriesPerCell = parent.entriesPerCell;
+            this.exactSize = -1;
+            this.position = position;
+            this.end = end;
+        }
 
-            @Override
-            public boolean hasNext() {
-                // read until iterator is empty or unused has a new entry
-                while (iterator.hasNext() && unused.isEmpty()) {
-                    int index = iterator.nextInt();
-                    if (index < 0 || index >= entries.length) {
-                        // out of bounds
+        @Override
+        public boolean tryAdvance(Consumer<? super Entry<T>> action) {
+            while (true) {
+                while (cellIndex < cellSize) {
+                    Entry<T> entry = slab[cell[cellIndex++]];
+                    BoundingBox boundingBox = entry.boundingBox();
+                    if (!boundingBox.intersects(queryItem)) {
                         continue;
                     }
-                    for (Entry<T> entry : entries[index]) {
-                        if (visited.containsKey(entry)) {
-                            continue;
-                        }
-                        if (!entry.boundingBox().intersects(queryItem)) {
-                            continue;
-                        }
-                        unused.put(entry, true);
-                        visited.put(entry, true);
+                    Vec entryMin = boundingBox.min();
+                    if (x != Math.max(cellX(entryMin.x()), minX) ||
+                        y != Math.max(cellY(entryMin.y()), minY) ||
+                        z != Math.max(cellZ(entryMin.z()), minZ)) {
+                        // passed on from another cell
+                        continue;
+                    }
+                    if (exactSize > 0) {
+                        exactSize--;
                     }
+                    action.accept(entry);
+                    return true;
+                }
+                if (position >= end) {
+                    return false;
                 }
+                x = minX + position % sizeX;
+                y = minY + position / sizeX % sizeY;
+                z = minZ + position / sizeX / sizeY;
+                position++;
+                int index = index(x, y, z);
+                cell = cells[index];
+                cellSize = cellSizes[index];
+                cellIndex = 0;
+            }
+        }
 
-                return !unused.isEmpty();
+        @Override
+        public Spliterator<Entry<T>> trySplit() {
+            int middle = (position + end) >>> 1;
+            if (middle <= position) {
+                return null;
             }
+            CellSpliterator split = new CellSpliterator(this, middle, end);
+            end = middle;
+            exactSize = -1;
+            return split;
+        }
 
-            @Override
-            public BoundingBoxLookup.Entry<T> next() {
-                if (!hasNext()) {
-                    throw new NoSuchElementException("No more elements");
-                }
+        @Override
+        public long estimateSize() {
+            return exactSize >= 0 ? exactSize : (long) Math.ceil((end - position) * entriesPerCell);
+        }
+
+        @Override
+        public int characteristics() {
+            return exactSize >= 0 ? NONNULL | SIZED : NONNULL;
+        }
+    }
 
-                Entry<T> next = unused.keySet().iterator().next();
-                unused.remove(next);
-                return next;
+    /**
+     * Walks the cells crossed by a line in order, like {@link #visitLine}. The cells of a walk are not a range to
+     * split.
+     */
+    private final class LineSpliterator implements Spliterator<Entry<T>> {
+
+        private final Line line;
+        private final GridWalk walk;
+        private boolean first = true;
+        private boolean done = false;
+        private int x, y, z;
+        private int previousX, previousY, previousZ;
+
+        private int[] cell;
+        private int cellSize;
+        private int cellIndex = 0;
+
+        private LineSpliterator(Line line) {
+            this.line = line;
+            this.walk = walk(line);
+            this.x = walk.x();
+            this.y = walk.y();
+            this.z = walk.z();
+            int index = index(x, y, z);
+            this.cell = cells[index];
+            this.cellSize = cellSizes[index];
+        }
+
+        @Override
+        public boolean tryAdvance(Consumer<? super Entry<T>> action) {
+            while (true) {
+                while (cellIndex < cellSize) {
+                    Entry<T> entry = slab[cell[cellIndex++]];
+                    BoundingBox boundingBox = entry.boundingBox();
+                    if (!boundingBox.intersects(line)) {
+                        continue;
+                    }
+                    if (!first && containsCell(boundingBox, previousX, previousY, previousZ)) {
+                        // passed on from the previous cell
+                        continue;
+                    }
+                    action.accept(entry);
+                    return true;
+                }
+                if (done || !walk.next()) {
+                    done = true;
+                    return false;
+                }
+                first = false;
+                previousX = x;
+                previousY = y;
+                previousZ = z;
+                x = walk.x();
+                y = walk.y();
+                z = walk.z();
+                int index = index(x, y, z);
+                cell = cells[index];
+                cellSize = cellSizes[index];
+                cellIndex = 0;
             }
-        };
+        }
+
+        @Override
+        public Spliterator<Entry<T>> trySplit() {
+            return null;
+        }
+
+        @Override
+        public long estimateSize() {
+            return Long.MAX_VALUE;
+        }
+
+        @Override
+        public int characteristics() {
+            return NONNULL | ORDERED;
+        }
     }
 
-    private IntStream forGridInstances(QueryItem queryItem) {
-        return switch (queryItem) {
-            case BoundingBox boundingBox -> forGridIndicesBB(boundingBox);
-            case Vec vec -> forGridIndicesVec(vec);
-            case QueryItem.All ignored -> forGridIndicesAll();
-            default -> throw new IllegalStateException("Unexpected value: " + queryItem);
-        };
+    /**
+     * Compares the entries within each cell. A pair sharing several cells is only visited from the first of them.
+     */
+    @Override
+    public void forEachOverlappingPair(BiConsumer<Entry<T>, Entry<T>> consumer) {
+        for (int z = 0; z < gridSize; z++) {
+            for (int y = 0; y < gridSize; y++) {
+                for (int x = 0; x < gridSize; x++) {
+                    int index = index(x, y, z);
+                    int[] cell = cells[index];
+                    int cellSize = cellSizes[index];
+                    for (int i = 0; i < cellSize; i++) {
+                        Entry<T> a = slab[cell[i]];
+                        Vec minA = a.boundingBox().min();
+                        for (int j = i + 1; j < cellSize; j++) {
+                            Entry<T> b = slab[cell[j]];
+                            if (!a.boundingBox().intersects(b.boundingBox())) {
+                                continue;
+                            }
+                            Vec minB = b.boundingBox().min();
+                            if (x != Math.max(cellX(minA.x()), cellX(minB.x())) ||
+                                y != Math.max(cellY(minA.y()), cellY(minB.y())) ||
+                                z != Math.max(cellZ(minA.z()), cellZ(minB.z()))) {
+                                // visited from another cell
+                                continue;
+                            }
+                            consumer.accept(a, b);
+                        }
+                    }
+                }
+            }
+        }
     }
 
-    private IntStream forGridIndicesBB(BoundingBox boundingBox) {
+    /**
+     * Searches the cells in rings of growing distance around the cell of the point, until the rings cover the whole
+     * grid or the nearest cell outside of them is further than the kth nearest entry found.
+     */
+    @Override
+    public @NotNull List<Entry<T>> nearest(Vec point, int k) {
+        Nearest<T> nearest = new Nearest<>(point, k);
+        if (size() == 0) {
+            return nearest.result();
+        }
 
-        Vec boundsMin = bounds.min();
-        Vec boundsMax = bounds.max();
+        int centerX = cellX(point.x());
+        int centerY = cellY(point.y());
+        int centerZ = cellZ(point.z());
+        // entries span several cells, so the same entry can be found in more than one ring
+        BitSet visited = new BitSet(handleCount);
+        for (int ring = 0; ; ring++) {
+            int minX = Math.max(centerX - ring, 0);
+            int minY = Math.max(centerY - ring, 0);
+            int minZ = Math.max(centerZ - ring, 0);
+            int maxX = Math.min(centerX + ring, gridSize - 1);
+            int maxY = Math.min(centerY + ring, gridSize - 1);
+            int maxZ = Math.min(centerZ + ring, gridSize - 1);
+
+            for (int z = minZ; z <= maxZ; z++) {
+                for (int y = minY; y <= maxY; y++) {
+                    // rows inside the ring only have a cell on either end of it
+                    boolean shell = Math.abs(z - centerZ) == ring || Math.abs(y - centerY) == ring;
+                    int step = shell ? 1 : ring * 2;
+                    for (int x = shell ? minX : centerX - ring; x <= maxX; x += step) {
+                        if (x < minX) {
+                            continue;
+                        }
+                        int index = index(x, y, z);
+                        int[] cell = cells[index];
+                        for (int i = 0; i < cellSizes[index]; i++) {
+                            int handle = cell[i];
+                            if (!visited.get(handle)) {
+                                visited.set(handle);
+                                nearest.offer(slab[handle].value(), slab[handle].boundingBox());
+                            }
+                        }
+                    }
+                }
+            }
 
-        Vec size = boundsMax.sub(boundsMin);
+            if (minX == 0 && minY == 0 && minZ == 0 && maxX == gridSize - 1 && maxY == gridSize - 1 && maxZ == gridSize - 1) {
+                break;
+            }
+            double reach = reach(point, minX, minY, minZ, maxX, maxY, maxZ);
+            if (nearest.bound() <= reach * reach) {
+                break;
+            }
+        }
+        return nearest.result();
+    }
 
-        double gridSize = this.gridSize;
+    // The distance from the point to the nearest cell outside the given cells, the outermost cells have nothing beyond them
+    private double reach(Vec point, int minX, int minY, int minZ, int maxX, int maxY, int maxZ) {
+        Vec boundsMin = bounds.min();
+        Vec boundsMax = bounds.max();
+        double reach = Double.POSITIVE_INFINITY;
+        if (minX > 0) reach = Math.min(reach, point.x() - boundary(minX, boundsMin.x(), boundsMax.x()));
+        if (minY > 0) reach = Math.min(reach, point.y() - boundary(minY, boundsMin.y(), boundsMax.y()));
+        if (minZ > 0) reach = Math.min(reach, point.z() - boundary(minZ, boundsMin.z(), boundsMax.z()));
+        if (maxX < gridSize - 1) reach = Math.min(reach, boundary(maxX + 1, boundsMin.x(), boundsMax.x()) - point.x());
+        if (maxY < gridSize - 1) reach = Math.min(reach, boundary(maxY + 1, boundsMin.y(), boundsMax.y()) - point.y());
+        if (maxZ < gridSize - 1) reach = Math.min(reach, boundary(maxZ + 1, boundsMin.z(), boundsMax.z()) - point.z());
+        return Math.max(reach, 0);
+    }
 
-        Vec min = boundingBox.min();
-        Vec max = boundingBox.max();
+    // The coordinate at which the given cell starts along one axis
+    private double boundary(int cell, double boundsMin, double boundsMax) {
+        return boundsMin + (boundsMax - boundsMin) * cell / gridSize;
+    }
 
-        Vec relMin = min.sub(boundsMin);
-        Vec relMax = max.sub(boundsMin);
-
-        // normalize to grid size
-        Vec normMin = relMin.div(size).mul(gridSize);
-        Vec normMax = relMax.div(size).mul(gridSize);
-
-        int minX = (int) Math.floor(normMin.x());
-        int minY = (int) Math.floor(normMin.y());
-        int minZ = (int) Math.floor(normMin.z());
-
-        int maxX = (int) Math.ceil(normMax.x());
-        int maxY = (int) Math.ceil(normMax.y());
-        int maxZ = (int) Math.ceil(normMax.z());
-
-//        for (int x = minX; x < maxX; x++) {
-//            for (int y = minY; y < maxY; y++) {
-//                for (int z = minZ; z < maxZ; z++) {
-//                    int index = x + y * this.gridSize + z * this.gridSize * this.gridSize;
-//                    if (consumer.test(index)) {
-//                        return;
-//                    }
-//                }
-//            }
-//        }
-
-        IntSupplier generator = new IntSupplier() {
-
-            int x = minX;
-            int y = minY;
-            int z = minZ;
-
-            @Override
-            public int getAsInt() {
-                int index = (int) (x + y * gridSize + z * gridSize * gridSize);
-
-                z++;
-                if (z >= maxZ) {
-                    z = minZ;
-                    y++;
-                    if (y >= maxY) {
-                        y = minY;
-                        x++;
-                        if (x > maxX) {
-                            return -1;
+    /**
+     * Visits the entries of every cell overlapping the given region.
+     * <p>
+     *     An entry spanning several cells is only visited from the first cell of its overlap with the region, so no
+     *     bookkeeping is needed to avoid visiting it twice.
+     * </p>
+     */
+    private boolean visitCells(Vec min, Vec max, QueryItem queryItem, BiPredicate<? super T, ? super BoundingBox> visitor) {
+        int minX = cellX(min.x());
+        int minY = cellY(min.y());
+        int minZ = cellZ(min.z());
+
+        int maxX = cellX(max.x());
+        int maxY = cellY(max.y());
+        int maxZ = cellZ(max.z());
+
+        for (int z = minZ; z <= maxZ; z++) {
+            for (int y = minY; y <= maxY; y++) {
+                for (int x = minX; x <= maxX; x++) {
+                    int index = index(x, y, z);
+                    int[] cell = cells[index];
+                    for (int i = 0; i < cellSizes[index]; i++) {
+                        Entry<T> entry = slab[cell[i]];
+                        BoundingBox boundingBox = entry.boundingBox();
+                        if (!boundingBox.intersects(queryItem)) {
+                            continue;
+                        }
+                        Vec entryMin = boundingBox.min();
+                        if (x != Math.max(cellX(entryMin.x()), minX) ||
+                            y != Math.max(cellY(entryMin.y()), minY) ||
+                            z != Math.max(cellZ(entryMin.z()), minZ)) {
+                            // visited from another cell
+                            continue;
+                        }
+                        if (visitor.test(entry.value(), boundingBox)) {
+                            return true;
                         }
                     }
                 }
+            }
+        }
+        return false;
+    }
 
-                return index;
+    /**
+     * Visits the entries of every cell crossed by the line, in order from its start to its end.
+     * <p>
+     *     An entry is only visited from the first cell of the walk within its cells, the walk enters and leaves the
+     *     cells of an entry at most once as every coordinate of a line is monotonic.
+     * </p>
+     */
+    private boolean visitLine(Line line, BiPredicate<? super T, ? super BoundingBox> visitor) {
+        GridWalk walk = walk(line);
+        boolean first = true;
+        int previousX = 0;
+        int previousY = 0;
+        int previousZ = 0;
+        do {
+            int x = walk.x();
+            int y = walk.y();
+            int z = walk.z();
+            int index = index(x, y, z);
+            int[] cell = cells[index];
+            for (int i = 0; i < cellSizes[index]; i++) {
+                Entry<T> entry = slab[cell[i]];
+                BoundingBox boundingBox = entry.boundingBox();
+                if (!boundingBox.intersects(line)) {
+                    continue;
+                }
+                if (!first && containsCell(boundingBox, previousX, previousY, previousZ)) {
+                    // visited from the previous cell
+                    continue;
+                }
+                if (visitor.test(entry.value(), boundingBox)) {
+                    return true;
+                }
             }
-        };
+            first = false;
+            previousX = x;
+            previousY = y;
+            previousZ = z;
+        } while (walk.next());
+        return false;
+    }
 
-        return IntStream.generate(generator).takeWhile(i -> i != -1);
+    private boolean containsCell(BoundingBox boundingBox, int x, int y, int z) {
+        Vec min = boundingBox.min();
+        Vec max = boundingBox.max();
+        return x >= cellX(min.x()) && x <= cellX(max.x()) &&
+               y >= cellY(min.y()) && y <= cellY(max.y()) &&
+               z >= cellZ(min.z()) && z <= cellZ(max.z());
     }
 
-    private IntStream forGridIndicesVec(Vec vec) {
-        Vec boundsMin = bounds.min();
-        Vec boundsMax = bounds.max();
+    private GridWalk walk(Line line) {
+        Vec start = line.start();
+        Vec end = line.end();
+        Vec min = bounds.min();
+        Vec max = bounds.max();
+        return new GridWalk(
+                units(start.x(), min.x(), max.x()), units(start.y(), min.y(), max.y()), units(start.z(), min.z(), max.z()),
+                units(end.x(), min.x(), max.x()), units(end.y(), min.y(), max.y()), units(end.z(), min.z(), max.z()),
+                0, gridSize - 1
+        );
+    }
+
+    private void forEachCell(BoundingBox boundingBox, IntConsumer consumer) {
+        Vec min = boundingBox.min();
+        Vec max = boundingBox.max();
 
-        Vec size = boundsMax.sub(boundsMin);
+        int minX = cellX(min.x());
+        int minY = cellY(min.y());
+        int minZ = cellZ(min.z());
 
-        double gridSize = this.gridSize;
+        int maxX = cellX(max.x());
+        int maxY = cellY(max.y());
+        int maxZ = cellZ(max.z());
 
-        Vec rel = vec.sub(boundsMin);
+        for (int z = minZ; z <= maxZ; z++) {
+            for (int y = minY; y <= maxY; y++) {
+                for (int x = minX; x <= maxX; x++) {
+                    consumer.accept(index(x, y, z));
+                }
+            }
+        }
+    }
 
-        // normalize to grid size
-        Vec norm = rel.div(size).mul(gridSize);
+    private int index(int x, int y, int z) {
+        return x + y * gridSize + z * gridSize * gridSize;
+    }
 
-        int x = (int) Math.floor(norm.x());
-        int y = (int) Math.floor(norm.y());
-        int z = (int) Math.floor(norm.z());
+    private int cellX(double x) {
+        return cell(x, bounds.min().x(), bounds.max().x());
+    }
 
-        int index = x + y * this.gridSize + z * this.gridSize * this.gridSize;
-        return IntStream.of(index);
+    private int cellY(double y) {
+        return cell(y, bounds.min().y(), bounds.max().y());
     }
 
-    private IntStream forGridIndicesAll() {
-        return IntStream.range(0, entries.length);
+    private int cellZ(double z) {
+        return cell(z, bounds.min().z(), bounds.max().z());
+    }
+
+    // Maps a coordinate to its cell along one axis, coordinates outside the bounds map to the outermost cells
+    private int cell(double value, double boundsMin, double boundsMax) {
+        int cell = (int) Math.floor(units(value, boundsMin, boundsMax));
+        return Math.min(Math.max(cell, 0), gridSize - 1);
+    }
+
+    // Maps a coordinate to the grid along one axis, measured in cells from the minimum of the bounds
+    private double units(double value, double boundsMin, double boundsMax) {
+        double size = boundsMax - boundsMin;
+        if (!(size > 0)) {
+            return 0;
+        }
+        return (value - boundsMin) / size * gridSize;
     }
 }
@@ -0,0 +1,114 @@
+package org.bbq.lookup;
+
+/**
+ * Walks the cells of a grid crossed by a line segment in order from its start to its end, using the 3D digital
+ * differential analyzer of Amanatides and Woo.
+ * <p>
+ *     Coordinates are given in cell units, cell i spans [i, i + 1) along each axis. Cells are clamped to [min, max],
+ *     so the outermost cells extend to infinity, matching grids that keep out of bounds entries in their outermost
+ *     cells. The walk therefore visits at most {@code 3 * (max - min + 1)} cells however long the segment is.
+ * </p>
+ */
+final class GridWalk {
+
+    private final int min;
+    private final int max;
+
+    private int x;
+    private int y;
+    private int z;
+
+    private final int stepX;
+    private final int stepY;
+    private final int stepZ;
+
+    // the fraction of the segment at which the walk crosses into the next cell along each axis
+    private double tMaxX;
+    private double tMaxY;
+    private double tMaxZ;
+
+    // the fraction of the segment it takes to cross a whole cell along each axis
+    private final double tDeltaX;
+    private final double tDeltaY;
+    private final double tDeltaZ;
+
+    GridWalk(double startX, double startY, double startZ, double endX, double endY, double endZ, int min, int max) {
+        this.min = min;
+        this.max = max;
+
+        this.x = cell(startX);
+        this.y = cell(startY);
+        this.z = cell(startZ);
+
+        double deltaX = endX - startX;
+        double deltaY = endY - startY;
+        double deltaZ = endZ - startZ;
+
+        this.stepX = (int) Math.signum(deltaX);
+        this.stepY = (int) Math.signum(deltaY);
+        this.stepZ = (int) Math.signum(deltaZ);
+
+        this.tMaxX = firstCrossing(startX, deltaX, x);
+        this.tMaxY = firstCrossing(startY, deltaY, y);
+        this.tMaxZ = firstCrossing(startZ, deltaZ, z);
+
+        this.tDeltaX = 1 / Math.abs(deltaX);
+        this.tDeltaY = 1 / Math.abs(deltaY);
+        this.tDeltaZ = 1 / Math.abs(deltaZ);
+    }
+
+    int x() {
+        return x;
+    }
+
+    int y() {
+        return y;
+    }
+
+    int z() {
+        return z;
+    }
+
+    /**
+     * Steps into the next cell crossed by the segment.
+     * @return false if the segment ends in the current cell.
+     */
+    boolean next() {
+        if (tMaxX <= tMaxY && tMaxX <= tMaxZ) {
+            if (tMaxX > 1) {
+                return false;
+            }
+            x += stepX;
+            tMaxX = isLast(x, stepX) ? Double.POSITIVE_INFINITY : tMaxX + tDeltaX;
+        } else if (tMaxY <= tMaxZ) {
+            if (tMaxY > 1) {
+                return false;
+            }
+            y += stepY;
+            tMaxY = isLast(y, stepY) ? Double.POSITIVE_INFINITY : tMaxY + tDeltaY;
+        } else {
+            if (tMaxZ > 1) {
+                return false;
+            }
+            z += stepZ;
+            tMaxZ = isLast(z, stepZ) ? Double.POSITIVE_INFINITY : tMaxZ + tDeltaZ;
+        }
+        return true;
+    }
+
+    private int cell(double value) {
+        return (int) Math.min(Math.max(Math.floor(value), min), max);
+    }
+
+    private double firstCrossing(double start, double delta, int cell) {
+        if (delta == 0 || isLast(cell, (int) Math.signum(delta))) {
+            return Double.POSITIVE_INFINITY;
+        }
+        return ((delta > 0 ? cell + 1 : cell) - start) / delta;
+    }
+
+    // The outermost cell in the direction of the walk has no further boundary to cross
+    private boolean isLast(int cell, int step) {
+        return step > 0 ? cell >= max : cell <= min;
+    }
+}
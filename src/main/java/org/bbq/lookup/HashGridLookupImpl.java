@@ -0,0 +1,756 @@
+package org.bbq.lookup;
+
+import org.bbq.BoundingBox;
+import org.bbq.Line;
+import org.bbq.QueryItem;
+import org.bbq.Sphere;
+import org.bbq.Vec;
+import org.bbq.util.LongHashMap;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.function.BiConsumer;
+import java.util.function.BiPredicate;
+import java.util.function.Consumer;
+
+/**
+ * A lookup implementation with an unbounded grid of fixed size cells, where only the occupied cells are stored.
+ * <p>
+ *     Cells are kept in a {@link LongHashMap} keyed by their packed coordinates, so memory grows with the number of
+ *     occupied cells rather than with the size of the world. Cell coordinates are clamped to 21 bits per axis, cells
+ *     further out hold everything beyond them.
+ * </p>
+ * <p>
+ *     Entries are stored once in a slab and referenced from each of their cells by their handle, like
+ *     {@link GridLookupImpl}. Cells are growable arrays of handles, removing a handle swaps the last handle of the cell
+ *     into its place.
+ * </p>
+ */
+class HashGridLookupImpl<T> implements BoundingBoxLookup<T> {
+
+    private static final int BITS = 21;
+    private static final long MASK = (1L << BITS) - 1;
+    private static final int MIN_CELL = -(1 << (BITS - 1));
+    private static final int MAX_CELL = (1 << (BITS - 1)) - 1;
+    private static final int NULL = -1;
+    private static final int INITIAL_CAPACITY = 16;
+
+    private final double cellSize;
+    private final LongHashMap<Cell> cells = new LongHashMap<>();
+
+    // the entry of each handle, null for free handles
+    private Entry<T>[] slab;
+    private int handleCount = 0;
+    private int[] free = new int[INITIAL_CAPACITY];
+    private int freeCount = 0;
+    // the newest copy of each distinct entry, older copies are chained through next
+    private final Map<Entry<T>, Integer> handles = new HashMap<>();
+    private int[] next = new int[INITIAL_CAPACITY];
+    private int size = 0;
+
+    /**
+     * The handles in an occupied cell, only the first {@code size} handles are used.
+     */
+    private static final class Cell {
+        private int[] handles = new int[4];
+        private int size = 0;
+    }
+
+    HashGridLookupImpl(double cellSize) {
+        if (!(cellSize > 0) || Double.isInfinite(cellSize)) {
+            throw new IllegalArgumentException("Cell size must be positive and finite: " + cellSize);
+        }
+        this.cellSize = cellSize;
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        Entry<T>[] slab = new Entry[INITIAL_CAPACITY];
+        this.slab = slab;
+    }
+
+    @Override
+    public void insert(T value, BoundingBox boundingBox) {
+        Entry<T> entry = new Entry<>(value, boundingBox);
+        int handle = allocate();
+        slab[handle] = entry;
+        link(entry, handle);
+        size++;
+
+        Vec min = boundingBox.min();
+        Vec max = boundingBox.max();
+        for (int z = cell(min.z()); z <= cell(max.z()); z++) {
+            for (int y = cell(min.y()); y <= cell(max.y()); y++) {
+                for (int x = cell(min.x()); x <= cell(max.x()); x++) {
+                    addToCell(key(x, y, z), handle);
+                }
+            }
+        }
+    }
+
+    @Override
+    public void remove(T value, BoundingBox boundingBox) {
+        int handle = unlink(new Entry<>(value, boundingBox));
+        if (handle == NULL) {
+            return;
+        }
+
+        Vec min = boundingBox.min();
+        Vec max = boundingBox.max();
+        for (int z = cell(min.z()); z <= cell(max.z()); z++) {
+            for (int y = cell(min.y()); y <= cell(max.y()); y++) {
+                for (int x = cell(min.x()); x <= cell(max.x()); x++) {
+                    removeFromCell(key(x, y, z), handle);
+                }
+            }
+        }
+        slab[handle] = null;
+        if (freeCount == free.length) {
+            free = Arrays.copyOf(free, freeCount * 2);
+        }
+        free[freeCount++] = handle;
+        size--;
+    }
+
+    @Override
+    public void update(T value, BoundingBox oldBoundingBox, BoundingBox newBoundingBox) {
+        Entry<T> oldEntry = new Entry<>(value, oldBoundingBox);
+        if (!handles.containsKey(oldEntry)) {
+            insert(value, newBoundingBox);
+            return;
+        }
+
+        int oldMinX = cell(oldBoundingBox.min().x());
+        int oldMinY = cell(oldBoundingBox.min().y());
+        int oldMinZ = cell(oldBoundingBox.min().z());
+        int oldMaxX = cell(oldBoundingBox.max().x());
+        int oldMaxY = cell(oldBoundingBox.max().y());
+        int oldMaxZ = cell(oldBoundingBox.max().z());
+
+        int newMinX = cell(newBoundingBox.min().x());
+        int newMinY = cell(newBoundingBox.min().y());
+        int newMinZ = cell(newBoundingBox.min().z());
+        int newMaxX = cell(newBoundingBox.max().x());
+        int newMaxY = cell(newBoundingBox.max().y());
+        int newMaxZ = cell(newBoundingBox.max().z());
+
+        if (newMinX > oldMaxX || newMaxX < oldMinX || newMinY > oldMaxY || newMaxY < oldMinY || newMinZ > oldMaxZ || newMaxZ < oldMinZ) {
+            // no cell is shared, and the cells between the two ranges may be far too many to walk
+            remove(value, oldBoundingBox);
+            insert(value, newBoundingBox);
+            return;
+        }
+
+        Entry<T> newEntry = new Entry<>(value, newBoundingBox);
+        int handle = unlink(oldEntry);
+        link(newEntry, handle);
+        slab[handle] = newEntry;
+
+        // only the cells the entry leaves or enters change, the handle stays in the rest
+        for (int z = oldMinZ; z <= oldMaxZ; z++) {
+            for (int y = oldMinY; y <= oldMaxY; y++) {
+                for (int x = oldMinX; x <= oldMaxX; x++) {
+                    if (x < newMinX || x > newMaxX || y < newMinY || y > newMaxY || z < newMinZ || z > newMaxZ) {
+                        removeFromCell(key(x, y, z), handle);
+                    }
+                }
+            }
+        }
+        for (int z = newMinZ; z <= newMaxZ; z++) {
+            for (int y = newMinY; y <= newMaxY; y++) {
+                for (int x = newMinX; x <= newMaxX; x++) {
+                    if (x < oldMinX || x > oldMaxX || y < oldMinY || y > oldMaxY || z < oldMinZ || z > oldMaxZ) {
+                        addToCell(key(x, y, z), handle);
+                    }
+                }
+            }
+        }
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Traverses the cells lazily as the iterator is advanced, passing each entry on from one of its cells like
+     * {@link #visitUntil}.
+     */
+    @Override
+    public @NotNull Iterable<Entry<T>> visit(QueryItem queryItem) {
+        return () -> Spliterators.iterator(spliterator(queryItem));
+    }
+
+    @Override
+    public boolean visitUntil(QueryItem queryItem, BiPredicate<? super T, ? super BoundingBox> visitor) {
+        return switch (queryItem) {
+            case BoundingBox boundingBox -> visitCells(
+                    cell(boundingBox.min().x()), cell(boundingBox.min().y()), cell(boundingBox.min().z()),
+                    cell(boundingBox.max().x()), cell(boundingBox.max().y()), cell(boundingBox.max().z()),
+                    queryItem, visitor
+            );
+            case Vec vec -> {
+                int x = cell(vec.x());
+                int y = cell(vec.y());
+                int z = cell(vec.z());
+                yield visitCells(x, y, z, x, y, z, queryItem, visitor);
+            }
+            case Line line -> visitLine(line, visitor);
+            case Sphere sphere -> visitCells(
+                    cell(sphere.center().x() - sphere.radius()), cell(sphere.center().y() - sphere.radius()), cell(sphere.center().z() - sphere.radius()),
+                    cell(sphere.center().x() + sphere.radius()), cell(sphere.center().y() + sphere.radius()), cell(sphere.center().z() + sphere.radius()),
+                    queryItem, visitor
+            );
+            case QueryItem.All ignored -> visitCells(MIN_CELL, MIN_CELL, MIN_CELL, MAX_CELL, MAX_CELL, MAX_CELL, queryItem, visitor);
+        };
+    }
+
+    @Override
+    public @NotNull Spliterator<Entry<T>> spliterator(QueryItem queryItem) {
+        return switch (queryItem) {
+            case BoundingBox boundingBox -> new CellSpliterator(
+                    cell(boundingBox.min().x()), cell(boundingBox.min().y()), cell(boundingBox.min().z()),
+                    cell(boundingBox.max().x()), cell(boundingBox.max().y()), cell(boundingBox.max().z()),
+                    queryItem
+            );
+            case Vec vec -> {
+                int x = cell(vec.x());
+                int y = cell(vec.y());
+                int z = cell(vec.z());
+                yield new CellSpliterator(x, y, z, x, y, z, queryItem);
+            }
+            case Line line -> {
+                if (!walksCells(line)) {
+                    yield new CellSpliterator(
+                            cell(Math.min(line.start().x(), line.end().x())), cell(Math.min(line.start().y(), line.end().y())), cell(Math.min(line.start().z(), line.end().z())),
+                            cell(Math.max(line.start().x(), line.end().x())), cell(Math.max(line.start().y(), line.end().y())), cell(Math.max(line.start().z(), line.end().z())),
+                            line
+                    );
+                }
+                yield new LineSpliterator(line);
+            }
+            case Sphere sphere -> new CellSpliterator(
+                    cell(sphere.center().x() - sphere.radius()), cell(sphere.center().y() - sphere.radius()), cell(sphere.center().z() - sphere.radius()),
+                    cell(sphere.center().x() + sphere.radius()), cell(sphere.center().y() + sphere.radius()), cell(sphere.center().z() + sphere.radius()),
+                    queryItem
+            );
+            case QueryItem.All ignored -> new CellSpliterator(MIN_CELL, MIN_CELL, MIN_CELL, MAX_CELL, MAX_CELL, MAX_CELL, queryItem);
+        };
+    }
+
+    /**
+     * Traverses the occupied cells of a range in the order of {@link #visitCells}, splitting the positions left in
+     * half. Ranges with more cells than are occupied walk the slots of the cell map instead of the cells of the range.
+     * The size is exact for {@link QueryItem#ALL} until the first split.
+     */
+    private final class CellSpliterator implements Spliterator<Entry<T>> {
+
+        private final QueryItem queryItem;
+        private final int minX, minY, minZ, maxX, maxY, maxZ;
+        // positions are slots of the cell map rather than cells of the range, numbered x first
+        private final boolean sparse;
+        private final double entriesPerPosition;
+        // the number of entries left, or -1 if unknown
+        private long exactSize;
+
+        private int position;
+        private int end;
+
+        private Cell cell;
+        private int cellIndex = 0;
+        private int x, y, z;
+
+        private CellSpliterator(int minX, int minY, int minZ, int maxX, int maxY, int maxZ, QueryItem queryItem) {
+            this.queryItem = queryItem;
+            this.minX = minX;
+            this.minY = minY;
+            this.minZ = minZ;
+            this.maxX = maxX;
+            this.maxY = maxY;
+            this.maxZ = maxZ;
+            // a double, as the whole grid has more cells than a long can count
+            double cellCount = (double) (maxX - minX + 1) * (maxY - minY + 1) * (maxZ - minZ + 1);
+            this.sparse = cellCount > cells.size();
+            this.position = 0;
+            this.end = sparse ? cells.capacity() : (int) cellCount;
+            this.entriesPerPosition = sparse ? (double) size / cells.capacity() : (double) size / Math.max(cells.size(), 1);
+            this.exactSize = queryItem instanceof QueryItem.All ? size : -1;
+        }
+
+        private CellSpliterator(CellSpliterator parent, int position, int end) {
+            this.queryItem = parent.queryItem;
+            this.minX = parent.minX;
+            this.minY = parent.minY;
+            this.minZ = parent.minZ;
+            this.maxX = parent.maxX;
+            this.maxY = parent.maxY;
+            this.maxZ = parent.maxZ;
+            this.sparse = parent.sparse;
+            this.entriesPerPosition = parent.entriesPerPosition;
+            this.exactSize = -1;
+            this.position = position;
+            this.end = end;
+        }
+
+        @Override
+        public boolean tryAdvance(Consumer<? super Entry<T>> action) {
+            while (true) {
+                while (cell != null && cellIndex < cell.size) {
+                    Entry<T> entry = slab[cell.handles[cellIndex++]];
+                    if (!passesOn(entry, x, y, z, minX, minY, minZ, queryItem)) {
+                        continue;
+                    }
+                    if (exactSize > 0) {
+                        exactSize--;
+                    }
+                    action.accept(entry);
+                    return true;
+                }
+                if (position >= end) {
+                    return false;
+                }
+                cell = sparse ? occupiedCell(position++) : rangeCell(position++);
+                cellIndex = 0;
+            }
+        }
+
+        // The cell in the slot of the map if it is in the range, or null
+        private Cell occupiedCell(int slot) {
+            Cell cell = cells.valueAt(slot);
+            if (cell == null) {
+                return null;
+            }
+            long key = cells.keyAt(slot);
+            x = unpackX(key);
+            y = unpackY(key);
+            z = unpackZ(key);
+            return x < minX || x > maxX || y < minY || y > maxY || z < minZ || z > maxZ ? null : cell;
+        }
+
+        // The cell at the position of the range, or null if it is empty
+        private Cell rangeCell(int position) {
+            int sizeX = maxX - minX + 1;
+            int sizeY = maxY - minY + 1;
+            x = minX + position % sizeX;
+            y = minY + position / sizeX % sizeY;
+            z = minZ + position / sizeX / sizeY;
+            return cells.get(key(x, y, z));
+        }
+
+        @Override
+        public Spliterator<Entry<T>> trySplit() {
+            int middle = (position + end) >>> 1;
+            if (middle <= position) {
+                return null;
+            }
+            CellSpliterator split = new CellSpliterator(this, middle, end);
+            end = middle;
+            exactSize = -1;
+            return split;
+        }
+
+        @Override
+        public long estimateSize() {
+            return exactSize >= 0 ? exactSize : (long) Math.ceil((end - position) * entriesPerPosition);
+        }
+
+        @Override
+        public int characteristics() {
+            return exactSize >= 0 ? NONNULL | SIZED : NONNULL;
+        }
+    }
+
+    /**
+     * Walks the cells crossed by a line in order, like {@link #visitLine}. The cells of a walk are not a range to
+     * split.
+     */
+    private final class LineSpliterator implements Spliterator<Entry<T>> {
+
+        private final Line line;
+        private final GridWalk walk;
+        private boolean first = true;
+        private boolean done = false;
+        private int x, y, z;
+        private int previousX, previousY, previousZ;
+
+        private Cell cell;
+        private int cellIndex = 0;
+
+        private LineSpliterator(Line line) {
+            this.line = line;
+            this.walk = walk(line);
+            this.x = walk.x();
+            this.y = walk.y();
+            this.z = walk.z();
+            this.cell = cells.get(key(x, y, z));
+        }
+
+        @Override
+        public boolean tryAdvance(Consumer<? super Entry<T>> action) {
+            while (true) {
+                while (cell != null && cellIndex < cell.size) {
+                    Entry<T> entry = slab[cell.handles[cellIndex++]];
+                    BoundingBox boundingBox = entry.boundingBox();
+                    if (!boundingBox.intersects(line)) {
+                        continue;
+                    }
+                    if (!first && containsCell(boundingBox, previousX, previousY, previousZ)) {
+                        // passed on from the previous cell
+                        continue;
+                    }
+                    action.accept(entry);
+                    return true;
+                }
+                if (done || !walk.next()) {
+                    done = true;
+                    return false;
+                }
+                first = false;
+                previousX = x;
+                previousY = y;
+                previousZ = z;
+                x = walk.x();
+                y = walk.y();
+                z = walk.z();
+                cell = cells.get(key(x, y, z));
+                cellIndex = 0;
+            }
+        }
+
+        @Override
+        public Spliterator<Entry<T>> trySplit() {
+            return null;
+        }
+
+        @Override
+        public long estimateSize() {
+            return Long.MAX_VALUE;
+        }
+
+        @Override
+        public int characteristics() {
+            return NONNULL | ORDERED;
+        }
+    }
+
+    /**
+     * Compares the entries within each occupied cell, like {@link GridLookupImpl}.
+     */
+    @Override
+    public void forEachOverlappingPair(BiConsumer<Entry<T>, Entry<T>> consumer) {
+        cells.visitUntil((key, cell) -> {
+            int x = unpackX(key);
+            int y = unpackY(key);
+            int z = unpackZ(key);
+            for (int i = 0; i < cell.size; i++) {
+                Entry<T> a = slab[cell.handles[i]];
+                Vec minA = a.boundingBox().min();
+                for (int j = i + 1; j < cell.size; j++) {
+                    Entry<T> b = slab[cell.handles[j]];
+                    if (!a.boundingBox().intersects(b.boundingBox())) {
+                        continue;
+                    }
+                    Vec minB = b.boundingBox().min();
+                    if (x != Math.max(cell(minA.x()), cell(minB.x())) ||
+                        y != Math.max(cell(minA.y()), cell(minB.y())) ||
+                        z != Math.max(cell(minA.z()), cell(minB.z()))) {
+                        // visited from another cell
+                        continue;
+                    }
+                    consumer.accept(a, b);
+                }
+            }
+            return false;
+        });
+    }
+
+    /**
+     * Searches the cells in rings of growing distance around the cell of the point like {@link GridLookupImpl}, and
+     * scans every occupied cell instead once the next ring has more cells than are occupied.
+     */
+    @Override
+    public @NotNull List<Entry<T>> nearest(Vec point, int k) {
+        Nearest<T> nearest = new Nearest<>(point, k);
+        int centerX = cell(point.x());
+        int centerY = cell(point.y());
+        int centerZ = cell(point.z());
+        // entries span several cells, so the same entry can be found in more than one ring
+        BitSet visited = new BitSet(handleCount);
+        for (int ring = 0; ; ring++) {
+            double blockCells = Math.pow(ring * 2 + 1, 3);
+            if (blockCells > cells.size()) {
+                cells.visitUntil((key, cell) -> {
+                    offer(cell, visited, nearest);
+                    return false;
+                });
+                break;
+            }
+
+            int minX = Math.max(centerX - ring, MIN_CELL);
+            int minY = Math.max(centerY - ring, MIN_CELL);
+            int minZ = Math.max(centerZ - ring, MIN_CELL);
+            int maxX = Math.min(centerX + ring, MAX_CELL);
+            int maxY = Math.min(centerY + ring, MAX_CELL);
+            int maxZ = Math.min(centerZ + ring, MAX_CELL);
+
+            for (int z = minZ; z <= maxZ; z++) {
+                for (int y = minY; y <= maxY; y++) {
+                    // rows inside the ring only have a cell on either end of it
+                    boolean shell = Math.abs(z - centerZ) == ring || Math.abs(y - centerY) == ring;
+                    int step = shell ? 1 : ring * 2;
+                    for (int x = shell ? minX : centerX - ring; x <= maxX; x += step) {
+                        Cell cell = x < minX ? null : cells.get(key(x, y, z));
+                        if (cell != null) {
+                            offer(cell, visited, nearest);
+                        }
+                    }
+                }
+            }
+
+            // the distance from the point to the nearest cell outside the ring
+            double reach = Double.POSITIVE_INFINITY;
+            if (minX > MIN_CELL) reach = Math.min(reach, point.x() - minX * cellSize);
+            if (minY > MIN_CELL) reach = Math.min(reach, point.y() - minY * cellSize);
+            if (minZ > MIN_CELL) reach = Math.min(reach, point.z() - minZ * cellSize);
+            if (maxX < MAX_CELL) reach = Math.min(reach, (maxX + 1) * cellSize - point.x());
+            if (maxY < MAX_CELL) reach = Math.min(reach, (maxY + 1) * cellSize - point.y());
+            if (maxZ < MAX_CELL) reach = Math.min(reach, (maxZ + 1) * cellSize - point.z());
+            reach = Math.max(reach, 0);
+            if (nearest.bound() <= reach * reach) {
+                break;
+            }
+        }
+        return nearest.result();
+    }
+
+    private void offer(Cell cell, BitSet visited, Nearest<T> nearest) {
+        for (int i = 0; i < cell.size; i++) {
+            int handle = cell.handles[i];
+            if (!visited.get(handle)) {
+                visited.set(handle);
+                nearest.offer(slab[handle].value(), slab[handle].boundingBox());
+            }
+        }
+    }
+
+    /**
+     * Visits the entries of every occupied cell in the given range.
+     * <p>
+     *     Ranges with more cells than are occupied are answered by scanning the occupied cells instead of probing
+     *     every cell of the range. Like {@link GridLookupImpl}, an entry spanning several cells is only visited from
+     *     the first cell of its overlap with the range.
+     * </p>
+     */
+    private boolean visitCells(int minX, int minY, int minZ, int maxX, int maxY, int maxZ,
+                               QueryItem queryItem, BiPredicate<? super T, ? super BoundingBox> visitor) {
+        // a double, as the whole grid has more cells than a long can count
+        double cellCount = (double) (maxX - minX + 1) * (maxY - minY + 1) * (maxZ - minZ + 1);
+        if (cellCount > cells.size()) {
+            return cells.visitUntil((key, cell) -> {
+                int x = unpackX(key);
+                int y = unpackY(key);
+                int z = unpackZ(key);
+                if (x < minX || x > maxX || y < minY || y > maxY || z < minZ || z > maxZ) {
+                    return false;
+                }
+                return visitCell(cell, x, y, z, minX, minY, minZ, queryItem, visitor);
+            });
+        }
+
+        for (int z = minZ; z <= maxZ; z++) {
+            for (int y = minY; y <= maxY; y++) {
+                for (int x = minX; x <= maxX; x++) {
+                    Cell cell = cells.get(key(x, y, z));
+                    if (cell != null && visitCell(cell, x, y, z, minX, minY, minZ, queryItem, visitor)) {
+                        return true;
+                    }
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Visits the entries of every cell crossed by the line in order from its start to its end, like
+     * {@link GridLookupImpl}. Lines crossing more cells than are occupied scan the occupied cells in their range instead.
+     */
+    private boolean visitLine(Line line, BiPredicate<? super T, ? super BoundingBox> visitor) {
+        Vec start = line.start();
+        Vec end = line.end();
+        if (!walksCells(line)) {
+            return visitCells(
+                    cell(Math.min(start.x(), end.x())), cell(Math.min(start.y(), end.y())), cell(Math.min(start.z(), end.z())),
+                    cell(Math.max(start.x(), end.x())), cell(Math.max(start.y(), end.y())), cell(Math.max(start.z(), end.z())),
+                    line, visitor
+            );
+        }
+
+        GridWalk walk = walk(line);
+        boolean first = true;
+        int previousX = 0;
+        int previousY = 0;
+        int previousZ = 0;
+        do {
+            int x = walk.x();
+            int y = walk.y();
+            int z = walk.z();
+            Cell cell = cells.get(key(x, y, z));
+            for (int i = 0; cell != null && i < cell.size; i++) {
+                Entry<T> entry = slab[cell.handles[i]];
+                BoundingBox boundingBox = entry.boundingBox();
+                if (!boundingBox.intersects(line)) {
+                    continue;
+                }
+                if (!first && containsCell(boundingBox, previousX, previousY, previousZ)) {
+                    // visited from the previous cell
+                    continue;
+                }
+                if (visitor.test(entry.value(), boundingBox)) {
+                    return true;
+                }
+            }
+            first = false;
+            previousX = x;
+            previousY = y;
+            previousZ = z;
+        } while (walk.next());
+        return false;
+    }
+
+    // Whether walking the cells crossed by the line is cheaper than scanning the occupied cells in its range
+    private boolean walksCells(Line line) {
+        Vec start = line.start();
+        Vec end = line.end();
+        double cellCount = 1.0 + Math.abs(cell(end.x()) - cell(start.x())) + Math.abs(cell(end.y()) - cell(start.y())) + Math.abs(cell(end.z()) - cell(start.z()));
+        return cellCount <= cells.size();
+    }
+
+    private GridWalk walk(Line line) {
+        Vec start = line.start();
+        Vec end = line.end();
+        return new GridWalk(
+                start.x() / cellSize, start.y() / cellSize, start.z() / cellSize,
+                end.x() / cellSize, end.y() / cellSize, end.z() / cellSize,
+                MIN_CELL, MAX_CELL
+        );
+    }
+
+    private boolean containsCell(BoundingBox boundingBox, int x, int y, int z) {
+        Vec min = boundingBox.min();
+        Vec max = boundingBox.max();
+        return x >= cell(min.x()) && x <= cell(max.x()) &&
+               y >= cell(min.y()) && y <= cell(max.y()) &&
+               z >= cell(min.z()) && z <= cell(max.z());
+    }
+
+    private boolean visitCell(Cell cell, int x, int y, int z, int minX, int minY, int minZ,
+                              QueryItem queryItem, BiPredicate<? super T, ? super BoundingBox> visitor) {
+        for (int i = 0; i < cell.size; i++) {
+            Entry<T> entry = slab[cell.handles[i]];
+            if (passesOn(entry, x, y, z, minX, minY, minZ, queryItem) && visitor.test(entry.value(), entry.boundingBox())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Whether the entry intersects the query item and the cell is the first cell of its overlap with the range
+    private boolean passesOn(Entry<T> entry, int x, int y, int z, int minX, int minY, int minZ, QueryItem queryItem) {
+        BoundingBox boundingBox = entry.boundingBox();
+        if (!boundingBox.intersects(queryItem)) {
+            return false;
+        }
+        Vec entryMin = boundingBox.min();
+        return x == Math.max(cell(entryMin.x()), minX) &&
+               y == Math.max(cell(entryMin.y()), minY) &&
+               z == Math.max(cell(entryMin.z()), minZ);
+    }
+
+    private void addToCell(long key, int handle) {
+        Cell cell = cells.get(key);
+        if (cell == null) {
+            cell = new Cell();
+            cells.put(key, cell);
+        } else if (cell.size == cell.handles.length) {
+            cell.handles = Arrays.copyOf(cell.handles, cell.size * 2);
+        }
+        cell.handles[cell.size++] = handle;
+    }
+
+    // Empty cells are dropped
+    private void removeFromCell(long key, int handle) {
+        Cell cell = cells.get(key);
+        if (cell == null) {
+            return;
+        }
+        int last = cell.size - 1;
+        for (int i = 0; i <= last; i++) {
+            if (cell.handles[i] == handle) {
+                cell.handles[i] = cell.handles[last];
+                cell.size = last;
+                break;
+            }
+        }
+        if (cell.size == 0) {
+            cells.remove(key);
+        }
+    }
+
+    private int allocate() {
+        if (freeCount > 0) {
+            return free[--freeCount];
+        }
+        if (handleCount == slab.length) {
+            slab = Arrays.copyOf(slab, handleCount * 2);
+            next = Arrays.copyOf(next, handleCount * 2);
+        }
+        return handleCount++;
+    }
+
+    /**
+     * Removes the newest copy of the entry from its chain.
+     * @return The handle of the copy, or {@link #NULL} if there is none.
+     */
+    private int unlink(Entry<T> entry) {
+        Integer handle = handles.get(entry);
+        if (handle == null) {
+            return NULL;
+        }
+        if (next[handle] == NULL) {
+            handles.remove(entry);
+        } else {
+            handles.put(entry, next[handle]);
+        }
+        return handle;
+    }
+
+    private void link(Entry<T> entry, int handle) {
+        Integer newest = handles.put(entry, handle);
+        next[handle] = newest == null ? NULL : newest;
+    }
+
+    private int cell(double value) {
+        double cell = Math.floor(value / cellSize);
+        return (int) Math.min(Math.max(cell, MIN_CELL), MAX_CELL);
+    }
+
+    private static long key(int x, int y, int z) {
+        return ((x & MASK) << (BITS * 2)) | ((y & MASK) << BITS) | (z & MASK);
+    }
+
+    // Sign extends each coordinate back from its bits
+    private static int unpackX(long key) {
+        return (int) ((key << (64 - BITS * 3)) >> (64 - BITS));
+    }
+
+    private static int unpackY(long key) {
+        return (int) ((key << (64 - BITS * 2)) >> (64 - BITS));
+    }
+
+    private static int unpackZ(long key) {
+        return (int) ((key << (64 - BITS)) >> (64 - BITS));
+    }
+}
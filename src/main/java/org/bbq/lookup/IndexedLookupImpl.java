@@ -0,0 +1,136 @@
+package org.bbq.lookup;
+
+import org.bbq.BoundingBox;
+import org.bbq.QueryItem;
+import org.bbq.Vec;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Spliterator;
+import java.util.function.BiConsumer;
+import java.util.function.BiPredicate;
+
+/**
+ * Wraps a lookup with a reverse index from each value to the bounding boxes it was inserted with.
+ * <p>
+ *     {@link #remove(Object)} removes the value's entries directly, instead of searching the whole lookup for them.
+ * </p>
+ */
+class IndexedLookupImpl<T> implements BoundingBoxLookup<T> {
+
+    private final BoundingBoxLookup<T> lookup;
+    private final Map<T, List<BoundingBox>> boundingBoxes = new HashMap<>();
+
+    IndexedLookupImpl(BoundingBoxLookup<T> lookup) {
+        this.lookup = lookup;
+        for (Entry<T> entry : lookup.visit(QueryItem.ALL)) {
+            index(entry.value(), entry.boundingBox());
+        }
+    }
+
+    @Override
+    public void insert(T value, BoundingBox boundingBox) {
+        lookup.insert(value, boundingBox);
+        index(value, boundingBox);
+    }
+
+    @Override
+    public void remove(T value, BoundingBox boundingBox) {
+        if (unindex(value, boundingBox)) {
+            lookup.remove(value, boundingBox);
+        }
+    }
+
+    @Override
+    public void remove(T value) {
+        List<BoundingBox> removed = boundingBoxes.remove(value);
+        if (removed == null) {
+            return;
+        }
+        for (BoundingBox boundingBox : removed) {
+            lookup.remove(value, boundingBox);
+        }
+    }
+
+    @Override
+    public void update(T value, BoundingBox oldBoundingBox, BoundingBox newBoundingBox) {
+        lookup.update(value, oldBoundingBox, newBoundingBox);
+        unindex(value, oldBoundingBox);
+        index(value, newBoundingBox);
+    }
+
+    @Override
+    public int size() {
+        return lookup.size();
+    }
+
+    @Override
+    public BoundingBoxLookup<T> snapshot() {
+        return lookup.snapshot();
+    }
+
+    @Override
+    public @NotNull Iterable<Entry<T>> visit(QueryItem queryItem) {
+        return lookup.visit(queryItem);
+    }
+
+    @Override
+    public boolean visitUntil(QueryItem queryItem, BiPredicate<? super T, ? super BoundingBox> visitor) {
+        return lookup.visitUntil(queryItem, visitor);
+    }
+
+    @Override
+    public int count(QueryItem queryItem) {
+        return lookup.count(queryItem);
+    }
+
+    @Override
+    public @NotNull Spliterator<Entry<T>> spliterator(QueryItem queryItem) {
+        return lookup.spliterator(queryItem);
+    }
+
+    @Override
+    public @Nullable Hit<T> raycast(Vec origin, Vec direction, double maxDistance) {
+        return lookup.raycast(origin, direction, maxDistance);
+    }
+
+    @Override
+    public @NotNull List<Hit<T>> raycastAll(Vec origin, Vec direction, double maxDistance) {
+        return lookup.raycastAll(origin, direction, maxDistance);
+    }
+
+    @Override
+    public @NotNull List<Entry<T>> nearest(Vec point, int k) {
+        return lookup.nearest(point, k);
+    }
+
+    @Override
+    public void visitAll(List<QueryItem> queries, BatchConsumer<T> sink) {
+        lookup.visitAll(queries, sink);
+    }
+
+    @Override
+    public void forEachOverlappingPair(BiConsumer<Entry<T>, Entry<T>> consumer) {
+        lookup.forEachOverlappingPair(consumer);
+    }
+
+    private void index(T value, BoundingBox boundingBox) {
+        boundingBoxes.computeIfAbsent(value, ignored -> new ArrayList<>(1)).add(boundingBox);
+    }
+
+    // Returns true if the entry was indexed
+    private boolean unindex(T value, BoundingBox boundingBox) {
+        List<BoundingBox> indexed = boundingBoxes.get(value);
+        if (indexed == null || !indexed.remove(boundingBox)) {
+            return false;
+        }
+        if (indexed.isEmpty()) {
+            boundingBoxes.remove(value);
+        }
+        return true;
+    }
+}
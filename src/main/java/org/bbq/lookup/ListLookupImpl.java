@@ -2,11 +2,11 @@ package org.bbq.lookup;
 
 import org.bbq.BoundingBox;
 import org.bbq.QueryItem;
-import org.bbq.util.IntCache;
 import org.jetbrains.annotations.NotNull;
 
 import java.util.ArrayList;
 import java.util.Objects;
+import java.util.function.BiPredicate;
 
 /**
  * A lookup implementation with an {@link ArrayList} backing the lookup.
@@ -27,6 +27,16 @@ class ListLookupImpl<T> implements BoundingBoxLookup<T> {
         entries.remove(new Entry<>(value, boundingBox));
     }
 
+    @Override
+    public void update(T value, BoundingBox oldBoundingBox, BoundingBox newBoundingBox) {
+        int index = entries.indexOf(new Entry<>(value, oldBoundingBox));
+        if (index < 0) {
+            insert(value, newBoundingBox);
+            return;
+        }
+        entries.set(index, new Entry<>(value, newBoundingBox));
+    }
+
     @Override
     public @NotNull Iterable<Entry<T>> visit(QueryItem queryItem) {
         return () -> entries.stream()
@@ -34,6 +44,17 @@ class ListLookupImpl<T> implements BoundingBoxLookup<T> {
                 .iterator();
     }
 
+    @Override
+    public boolean visitUntil(QueryItem queryItem, BiPredicate<? super T, ? super BoundingBox> visitor) {
+        for (int i = 0; i < entries.size(); i++) {
+            Entry<T> entry = entries.get(i);
+            if (entry.boundingBox().intersects(queryItem) && visitor.test(entry.value(), entry.boundingBox())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     @Override
     public int size() {
         return entries.size();
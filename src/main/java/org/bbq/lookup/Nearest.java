@@ -0,0 +1,134 @@
+package org.bbq.lookup;
+
+import org.bbq.BoundingBox;
+import org.bbq.Vec;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Collects the k entries nearest to a point, measured from the point to the nearest point of each bounding box.
+ * <p>
+ *     The entries are kept in a max-heap on their distance, so the furthest of them is the one replaced by a nearer
+ *     entry. Once k entries are found, {@link #bound()} lets traversals skip everything further away.
+ * </p>
+ */
+final class Nearest<T> {
+
+    private static final int INITIAL_CAPACITY = 16;
+
+    private final Vec point;
+    private final int k;
+
+    private int size = 0;
+    private double[] distances;
+    private Object[] values;
+    private BoundingBox[] boxes;
+
+    Nearest(Vec point, int k) {
+        if (k < 0) {
+            throw new IllegalArgumentException("Cannot find a negative number of entries: " + k);
+        }
+        this.point = point;
+        this.k = k;
+        int capacity = Math.min(k, INITIAL_CAPACITY);
+        this.distances = new double[capacity];
+        this.values = new Object[capacity];
+        this.boxes = new BoundingBox[capacity];
+    }
+
+    Vec point() {
+        return point;
+    }
+
+    /**
+     * @return The squared distance an entry has to be nearer than to be kept, infinite until k entries are found.
+     */
+    double bound() {
+        if (k == 0) {
+            return Double.NEGATIVE_INFINITY;
+        }
+        return size < k ? Double.POSITIVE_INFINITY : distances[0];
+    }
+
+    /**
+     * Keeps the entry if it is one of the k nearest so far.
+     */
+    void offer(T value, BoundingBox boundingBox) {
+        double distance = boundingBox.distanceSquared(point);
+        if (!(distance < bound())) {
+            return;
+        }
+
+        if (size < k) {
+            if (size == distances.length) {
+                int capacity = (int) Math.min((long) size * 2, k);
+                distances = Arrays.copyOf(distances, capacity);
+                values = Arrays.copyOf(values, capacity);
+                boxes = Arrays.copyOf(boxes, capacity);
+            }
+            // sift the new entry up from the end of the heap
+            int index = size++;
+            while (index > 0) {
+                int parent = (index - 1) >>> 1;
+                if (distances[parent] >= distance) {
+                    break;
+                }
+                move(parent, index);
+                index = parent;
+            }
+            set(index, distance, value, boundingBox);
+            return;
+        }
+
+        // replace the furthest entry, and sift the new entry down from the top of the heap
+        int index = 0;
+        while (true) {
+            int child = index * 2 + 1;
+            if (child >= size) {
+                break;
+            }
+            if (child + 1 < size && distances[child + 1] > distances[child]) {
+                child++;
+            }
+            if (distances[child] <= distance) {
+                break;
+            }
+            move(child, index);
+            index = child;
+        }
+        set(index, distance, value, boundingBox);
+    }
+
+    /**
+     * @return The entries found, ordered from nearest to furthest.
+     */
+    List<BoundingBoxLookup.Entry<T>> result() {
+        Integer[] order = new Integer[size];
+        for (int i = 0; i < size; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, (a, b) -> Double.compare(distances[a], distances[b]));
+
+        List<BoundingBoxLookup.Entry<T>> result = new ArrayList<>(size);
+        for (int index : order) {
+            @SuppressWarnings("unchecked")
+            T value = (T) values[index];
+            result.add(new BoundingBoxLookup.Entry<>(value, boxes[index]));
+        }
+        return result;
+    }
+
+    private void move(int from, int to) {
+        distances[to] = distances[from];
+        values[to] = values[from];
+        boxes[to] = boxes[from];
+    }
+
+    private void set(int index, double distance, T value, BoundingBox boundingBox) {
+        distances[index] = distance;
+        values[index] = value;
+        boxes[index] = boundingBox;
+    }
+}
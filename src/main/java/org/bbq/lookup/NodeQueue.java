@@ -0,0 +1,74 @@
+package org.bbq.lookup;
+
+import java.util.Arrays;
+
+/**
+ * A min-heap of node indices keyed by a distance, for best-first traversal of the array backed trees.
+ */
+final class NodeQueue {
+
+    private int size = 0;
+    private double[] distances = new double[16];
+    private int[] nodes = new int[16];
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * @return The smallest distance in the queue.
+     */
+    double peekDistance() {
+        return distances[0];
+    }
+
+    void add(int node, double distance) {
+        if (size == nodes.length) {
+            distances = Arrays.copyOf(distances, size * 2);
+            nodes = Arrays.copyOf(nodes, size * 2);
+        }
+        int index = size++;
+        while (index > 0) {
+            int parent = (index - 1) >>> 1;
+            if (distances[parent] <= distance) {
+                break;
+            }
+            distances[index] = distances[parent];
+            nodes[index] = nodes[parent];
+            index = parent;
+        }
+        distances[index] = distance;
+        nodes[index] = node;
+    }
+
+    /**
+     * Removes the node with the smallest distance.
+     * @return The removed node.
+     */
+    int poll() {
+        int result = nodes[0];
+        size--;
+        double distance = distances[size];
+        int node = nodes[size];
+
+        int index = 0;
+        while (true) {
+            int child = index * 2 + 1;
+            if (child >= size) {
+                break;
+            }
+            if (child + 1 < size && distances[child + 1] < distances[child]) {
+                child++;
+            }
+            if (distances[child] >= distance) {
+                break;
+            }
+            distances[index] = distances[child];
+            nodes[index] = nodes[child];
+            index = child;
+        }
+        distances[index] = distance;
+        nodes[index] = node;
+        return result;
+    }
+}
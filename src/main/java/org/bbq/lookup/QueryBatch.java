@@ -0,0 +1,147 @@
+package org.bbq.lookup;
+
+import org.bbq.BoundingBox;
+import org.bbq.Line;
+import org.bbq.QueryItem;
+import org.bbq.Sphere;
+import org.bbq.Vec;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A batch of queries traversed through a hierarchy together, in packets of queries near each other.
+ * <p>
+ *     Queries are ordered along a Morton curve through their centers and split into packets of
+ *     {@link #PACKET_SIZE}, so the queries of a packet tend to overlap the same nodes. A packet descends the hierarchy
+ *     as a whole, each node is loaded once for the packet and narrows it down to the queries intersecting the node
+ *     with {@link #filter}.
+ * </p>
+ * <p>
+ *     The active queries of every level of the descent are stacked in a single buffer: a node reads the queries
+ *     active for it from {@code [from, to)} and writes those intersecting it directly after them.
+ * </p>
+ */
+final class QueryBatch {
+
+    static final int PACKET_SIZE = 64;
+
+    // bits per axis of the Morton code, the index of the query is kept in the low 32 bits of the sort key
+    private static final int BITS = 10;
+
+    private final List<QueryItem> queries;
+    private final int[] order;
+    private int[] buffer = new int[PACKET_SIZE * 8];
+
+    QueryBatch(List<QueryItem> queries) {
+        this.queries = queries;
+        this.order = mortonOrder(queries);
+    }
+
+    int packetCount() {
+        return (order.length + PACKET_SIZE - 1) / PACKET_SIZE;
+    }
+
+    /**
+     * Loads the queries of a packet to the start of the buffer.
+     * @return The end of the loaded queries.
+     */
+    int packet(int packet) {
+        int from = packet * PACKET_SIZE;
+        int count = Math.min(PACKET_SIZE, order.length - from);
+        System.arraycopy(order, from, buffer, 0, count);
+        return count;
+    }
+
+    /**
+     * @return The index in the batch of the query at the given position of the buffer.
+     */
+    int index(int position) {
+        return buffer[position];
+    }
+
+    QueryItem query(int position) {
+        return queries.get(buffer[position]);
+    }
+
+    /**
+     * Copies the queries in {@code [from, to)} of the buffer that intersect the bounds to the buffer, starting at
+     * {@code to}.
+     * @return The end of the copied queries.
+     */
+    int filter(int from, int to, double minX, double minY, double minZ, double maxX, double maxY, double maxZ) {
+        if (to + (to - from) > buffer.length) {
+            buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, to + (to - from)));
+        }
+        int end = to;
+        for (int i = from; i < to; i++) {
+            if (BoundingBox.intersects(minX, minY, minZ, maxX, maxY, maxZ, queries.get(buffer[i]))) {
+                buffer[end++] = buffer[i];
+            }
+        }
+        return end;
+    }
+
+    int filter(int from, int to, BoundingBox boundingBox) {
+        Vec min = boundingBox.min();
+        Vec max = boundingBox.max();
+        return filter(from, to, min.x(), min.y(), min.z(), max.x(), max.y(), max.z());
+    }
+
+    private static int[] mortonOrder(List<QueryItem> queries) {
+        int count = queries.size();
+        double[] centers = new double[count * 3];
+        double[] min = {Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY};
+        double[] max = {Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY};
+        for (int i = 0; i < count; i++) {
+            Vec center = center(queries.get(i));
+            centers[i * 3] = center.x();
+            centers[i * 3 + 1] = center.y();
+            centers[i * 3 + 2] = center.z();
+            for (int axis = 0; axis < 3; axis++) {
+                min[axis] = Math.min(min[axis], centers[i * 3 + axis]);
+                max[axis] = Math.max(max[axis], centers[i * 3 + axis]);
+            }
+        }
+
+        long[] keys = new long[count];
+        int cells = 1 << BITS;
+        for (int i = 0; i < count; i++) {
+            long code = 0;
+            for (int axis = 0; axis < 3; axis++) {
+                double extent = max[axis] - min[axis];
+                double scaled = extent > 0 ? (centers[i * 3 + axis] - min[axis]) / extent * cells : 0;
+                code |= spread((int) Math.min(Math.max(scaled, 0), cells - 1)) << axis;
+            }
+            keys[i] = code << 32 | i;
+        }
+        Arrays.sort(keys);
+
+        int[] order = new int[count];
+        for (int i = 0; i < count; i++) {
+            order[i] = (int) keys[i];
+        }
+        return order;
+    }
+
+    // Spreads the bits of the value out to every third bit
+    private static long spread(int value) {
+        long result = 0;
+        for (int bit = 0; bit < BITS; bit++) {
+            result |= (long) ((value >>> bit) & 1) << (bit * 3);
+        }
+        return result;
+    }
+
+    private static Vec center(QueryItem queryItem) {
+        Vec center = switch (queryItem) {
+            case BoundingBox boundingBox -> boundingBox.center();
+            case Vec vec -> vec;
+            case Line line -> line.start().add(line.end()).mul(0.5);
+            case Sphere sphere -> sphere.center();
+            case QueryItem.All ignored -> Vec.ZERO;
+        };
+        // queries reaching infinity have no meaningful center
+        return Double.isFinite(center.x()) && Double.isFinite(center.y()) && Double.isFinite(center.z()) ? center : Vec.ZERO;
+    }
+}
@@ -0,0 +1,86 @@
+package org.bbq.lookup;
+
+import org.bbq.BoundingBox;
+import org.bbq.Line;
+import org.bbq.Vec;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * A ray cast through a lookup, keeping track of the nearest hit so far.
+ * <p>
+ *     Once something is hit, only bounds nearer than the hit can hold a nearer one, so {@link #reaches(double)} lets
+ *     traversals skip everything further away.
+ * </p>
+ */
+final class Ray<T> {
+
+    private final Vec origin;
+    private final Vec direction;
+    private final double inverseX;
+    private final double inverseY;
+    private final double inverseZ;
+    private final double maxDistance;
+
+    private boolean hit = false;
+    private double distance;
+    private T value;
+    private BoundingBox boundingBox;
+
+    Ray(Vec origin, Vec direction, double maxDistance) {
+        if (!(maxDistance >= 0) || Double.isInfinite(maxDistance)) {
+            throw new IllegalArgumentException("Max distance must be positive and finite: " + maxDistance);
+        }
+        this.origin = origin;
+        this.direction = direction;
+        this.inverseX = 1 / direction.x();
+        this.inverseY = 1 / direction.y();
+        this.inverseZ = 1 / direction.z();
+        this.maxDistance = maxDistance;
+        this.distance = maxDistance;
+    }
+
+    /**
+     * @return The segment of the ray up to its max distance.
+     */
+    Line line() {
+        return new Line(origin, origin.add(direction.mul(maxDistance)));
+    }
+
+    /**
+     * @return The distance along the ray at which it enters the bounds, or {@link Double#POSITIVE_INFINITY} if it
+     * does not reach them before the nearest hit so far.
+     */
+    double distance(double minX, double minY, double minZ, double maxX, double maxY, double maxZ) {
+        return BoundingBox.rayDistance(minX, minY, minZ, maxX, maxY, maxZ, origin, inverseX, inverseY, inverseZ, distance);
+    }
+
+    double distance(BoundingBox boundingBox) {
+        Vec min = boundingBox.min();
+        Vec max = boundingBox.max();
+        return distance(min.x(), min.y(), min.z(), max.x(), max.y(), max.z());
+    }
+
+    /**
+     * @return {@code true} if bounds at the given distance could hold a hit nearer than the nearest hit so far.
+     */
+    boolean reaches(double distance) {
+        return hit ? distance < this.distance : distance <= this.distance;
+    }
+
+    /**
+     * Keeps the entry if the ray hits it nearer than the nearest hit so far.
+     */
+    void test(T value, BoundingBox boundingBox) {
+        double distance = distance(boundingBox);
+        if (reaches(distance)) {
+            this.hit = true;
+            this.distance = distance;
+            this.value = value;
+            this.boundingBox = boundingBox;
+        }
+    }
+
+    @Nullable BoundingBoxLookup.Hit<T> result() {
+        return hit ? new BoundingBoxLookup.Hit<>(value, boundingBox, distance) : null;
+    }
+}
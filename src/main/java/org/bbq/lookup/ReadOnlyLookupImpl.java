@@ -0,0 +1,103 @@
+package org.bbq.lookup;
+
+import org.bbq.BoundingBox;
+import org.bbq.QueryItem;
+import org.bbq.Vec;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.List;
+import java.util.Spliterator;
+import java.util.function.BiConsumer;
+import java.util.function.BiPredicate;
+
+/**
+ * A read-only view of a lookup nothing else modifies, as returned by {@link BoundingBoxLookup#snapshot()}.
+ * Modifications throw {@link UnsupportedOperationException}.
+ */
+class ReadOnlyLookupImpl<T> implements BoundingBoxLookup<T> {
+
+    private final BoundingBoxLookup<T> lookup;
+
+    ReadOnlyLookupImpl(BoundingBoxLookup<T> lookup) {
+        this.lookup = lookup;
+    }
+
+    @Override
+    public void insert(T value, BoundingBox boundingBox) {
+        throw new UnsupportedOperationException("Snapshots are read-only");
+    }
+
+    @Override
+    public void remove(T value, BoundingBox boundingBox) {
+        throw new UnsupportedOperationException("Snapshots are read-only");
+    }
+
+    @Override
+    public void remove(T value) {
+        throw new UnsupportedOperationException("Snapshots are read-only");
+    }
+
+    @Override
+    public void update(T value, BoundingBox oldBoundingBox, BoundingBox newBoundingBox) {
+        throw new UnsupportedOperationException("Snapshots are read-only");
+    }
+
+    @Override
+    public int size() {
+        return lookup.size();
+    }
+
+    @Override
+    public @NotNull Iterable<Entry<T>> visit(QueryItem queryItem) {
+        return lookup.visit(queryItem);
+    }
+
+    @Override
+    public boolean visitUntil(QueryItem queryItem, BiPredicate<? super T, ? super BoundingBox> visitor) {
+        return lookup.visitUntil(queryItem, visitor);
+    }
+
+    @Override
+    public int count(QueryItem queryItem) {
+        return lookup.count(queryItem);
+    }
+
+    @Override
+    public @NotNull Spliterator<Entry<T>> spliterator(QueryItem queryItem) {
+        return lookup.spliterator(queryItem);
+    }
+
+    @Override
+    public @Nullable Hit<T> raycast(Vec origin, Vec direction, double maxDistance) {
+        return lookup.raycast(origin, direction, maxDistance);
+    }
+
+    @Override
+    public @NotNull List<Hit<T>> raycastAll(Vec origin, Vec direction, double maxDistance) {
+        return lookup.raycastAll(origin, direction, maxDistance);
+    }
+
+    @Override
+    public @NotNull List<Entry<T>> nearest(Vec point, int k) {
+        return lookup.nearest(point, k);
+    }
+
+    @Override
+    public void visitAll(List<QueryItem> queries, BatchConsumer<T> sink) {
+        lookup.visitAll(queries, sink);
+    }
+
+    @Override
+    public void forEachOverlappingPair(BiConsumer<Entry<T>, Entry<T>> consumer) {
+        lookup.forEachOverlappingPair(consumer);
+    }
+
+    /**
+     * Nothing modifies the lookup, so the view is its own snapshot.
+     */
+    @Override
+    public BoundingBoxLookup<T> snapshot() {
+        return this;
+    }
+}
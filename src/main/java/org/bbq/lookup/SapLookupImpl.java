@@ -0,0 +1,554 @@
+package org.bbq.lookup;
+
+import org.bbq.BoundingBox;
+import org.bbq.Line;
+import org.bbq.QueryItem;
+import org.bbq.Sphere;
+import org.bbq.Vec;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.function.BiConsumer;
+import java.util.function.BiPredicate;
+import java.util.function.Consumer;
+
+/**
+ * A sweep and prune lookup, keeping the endpoints of every entry sorted along each axis.
+ * <p>
+ *     Endpoints are stored in primitive arrays per axis, next to the handle of their entry. Moving an entry only
+ *     swaps its endpoints past the few endpoints between their old and new positions, so entries moving a little at
+ *     a time are cheap to keep sorted. Inserted endpoints are appended unsorted, the next query sifts a few of them into
+ *     place the same way and only sorts every axis at once after many inserts. Removed endpoints are left in place
+ *     until enough of them pile up to compact the arrays.
+ * </p>
+ * <p>
+ *     Queries scan the endpoints of the axis along which the fewest entries can overlap them. Overlapping pairs are
+ *     found by sweeping along the x axis.
+ * </p>
+ */
+class SapLookupImpl<T> implements BoundingBoxLookup<T> {
+
+    private static final int NULL = -1;
+    // the axis of scans over handles instead of endpoints
+    private static final int HANDLES = -1;
+    private static final int INITIAL_CAPACITY = 16;
+    private static final int INSERTION_SORT_THRESHOLD = 16;
+
+    // the newest copy of each distinct entry, older copies are chained through next
+    private final Map<Entry<T>, Integer> handles = new HashMap<>();
+    private int[] next = new int[INITIAL_CAPACITY];
+    private Object[] values = new Object[INITIAL_CAPACITY];
+    // null for removed entries
+    private BoundingBox[] boxes = new BoundingBox[INITIAL_CAPACITY];
+    private int handleCount = 0;
+    private int[] free = new int[INITIAL_CAPACITY];
+    private int freeCount = 0;
+    private int size = 0;
+    // removed entries whose endpoints are still in the arrays
+    private int removed = 0;
+
+    // the value of each endpoint along each axis
+    private final double[][] endpoints = new double[3][INITIAL_CAPACITY * 2];
+    // the handle of the entry of each endpoint shifted left by one, the lowest bit is set for maximum endpoints
+    private final int[][] data = new int[3][INITIAL_CAPACITY * 2];
+    private final int[][] minPosition = new int[3][INITIAL_CAPACITY];
+    private final int[][] maxPosition = new int[3][INITIAL_CAPACITY];
+    private int endpointCount = 0;
+    // the endpoints before this position are sorted, the ones after it were appended since
+    private int sortedCount = 0;
+    // the largest extent of an entry along each axis, so entries overlapping a query start at most this far before it
+    private final double[] maxExtent = new double[3];
+
+    SapLookupImpl() {
+    }
+
+    @Override
+    public void insert(T value, BoundingBox boundingBox) {
+        int handle = allocate();
+        values[handle] = value;
+        boxes[handle] = boundingBox;
+        Integer newest = handles.put(new Entry<>(value, boundingBox), handle);
+        next[handle] = newest == null ? NULL : newest;
+
+        if (endpointCount + 2 > endpoints[0].length) {
+            int capacity = Math.max(endpoints[0].length * 2, endpointCount + 2);
+            for (int axis = 0; axis < 3; axis++) {
+                endpoints[axis] = Arrays.copyOf(endpoints[axis], capacity);
+                data[axis] = Arrays.copyOf(data[axis], capacity);
+            }
+        }
+        for (int axis = 0; axis < 3; axis++) {
+            double min = coordinate(boundingBox.min(), axis);
+            double max = coordinate(boundingBox.max(), axis);
+            place(axis, endpointCount, min, handle << 1);
+            place(axis, endpointCount + 1, max, handle << 1 | 1);
+            maxExtent[axis] = Math.max(maxExtent[axis], max - min);
+        }
+        endpointCount += 2;
+        size++;
+    }
+
+    @Override
+    public void remove(T value, BoundingBox boundingBox) {
+        int handle = unlink(new Entry<>(value, boundingBox));
+        if (handle == NULL) {
+            return;
+        }
+        values[handle] = null;
+        boxes[handle] = null;
+        size--;
+        removed++;
+        if (removed > Math.max(size, INITIAL_CAPACITY)) {
+            compact();
+        }
+    }
+
+    @Override
+    public void update(T value, BoundingBox oldBoundingBox, BoundingBox newBoundingBox) {
+        int handle = unlink(new Entry<>(value, oldBoundingBox));
+        if (handle == NULL) {
+            insert(value, newBoundingBox);
+            return;
+        }
+        Integer newest = handles.put(new Entry<>(value, newBoundingBox), handle);
+        next[handle] = newest == null ? NULL : newest;
+        values[handle] = value;
+        boxes[handle] = newBoundingBox;
+
+        sort();
+        for (int axis = 0; axis < 3; axis++) {
+            double min = coordinate(newBoundingBox.min(), axis);
+            double max = coordinate(newBoundingBox.max(), axis);
+            maxExtent[axis] = Math.max(maxExtent[axis], max - min);
+            // the rest of the endpoints stay sorted while each endpoint is moved into place
+            endpoints[axis][minPosition[axis][handle]] = min;
+            sift(axis, minPosition[axis][handle], endpointCount);
+            endpoints[axis][maxPosition[axis][handle]] = max;
+            sift(axis, maxPosition[axis][handle], endpointCount);
+        }
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public @NotNull Iterable<Entry<T>> visit(QueryItem queryItem) {
+        return () -> Spliterators.iterator(spliterator(queryItem));
+    }
+
+    @Override
+    public boolean visitUntil(QueryItem queryItem, BiPredicate<? super T, ? super BoundingBox> visitor) {
+        Scan scan = scan(queryItem);
+        for (int i = scan.from(); i < scan.to(); i++) {
+            int handle = handleAt(scan.axis(), i);
+            if (handle != NULL && boxes[handle].intersects(queryItem) && visitor.test(value(handle), boxes[handle])) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public @NotNull Spliterator<Entry<T>> spliterator(QueryItem queryItem) {
+        Scan scan = scan(queryItem);
+        return new ScanSpliterator(queryItem, scan.axis(), scan.from(), scan.to(), queryItem instanceof QueryItem.All ? size : -1);
+    }
+
+    /**
+     * The positions to test for a query, either handles or the endpoints along an axis.
+     */
+    private record Scan(int axis, int from, int to) {
+    }
+
+    private Scan scan(QueryItem queryItem) {
+        return switch (queryItem) {
+            case BoundingBox boundingBox -> scanRange(boundingBox.min(), boundingBox.max());
+            case Vec vec -> scanRange(vec, vec);
+            case Line line -> scanRange(
+                    new Vec(Math.min(line.start().x(), line.end().x()), Math.min(line.start().y(), line.end().y()), Math.min(line.start().z(), line.end().z())),
+                    new Vec(Math.max(line.start().x(), line.end().x()), Math.max(line.start().y(), line.end().y()), Math.max(line.start().z(), line.end().z()))
+            );
+            case Sphere sphere -> scanRange(sphere.center().sub(sphere.radius()), sphere.center().add(sphere.radius()));
+            case QueryItem.All ignored -> new Scan(HANDLES, 0, handleCount);
+        };
+    }
+
+    // Picks the axis with the fewest minimum endpoints in the range that can overlap [min, max]
+    private Scan scanRange(Vec min, Vec max) {
+        sort();
+        int bestAxis = 0;
+        int bestFrom = 0;
+        int bestTo = endpointCount;
+        for (int axis = 0; axis < 3; axis++) {
+            int from = lowerBound(axis, coordinate(min, axis) - maxExtent[axis]);
+            int to = upperBound(axis, coordinate(max, axis));
+            if (to - from < bestTo - bestFrom) {
+                bestAxis = axis;
+                bestFrom = from;
+                bestTo = to;
+            }
+        }
+        return new Scan(bestAxis, bestFrom, bestTo);
+    }
+
+    // The handle of the entry to test at a position of a scan, or NULL if there is none
+    private int handleAt(int axis, int position) {
+        if (axis == HANDLES) {
+            return boxes[position] != null ? position : NULL;
+        }
+        int endpoint = data[axis][position];
+        if ((endpoint & 1) != 0 || boxes[endpoint >>> 1] == null) {
+            return NULL;
+        }
+        return endpoint >>> 1;
+    }
+
+    /**
+     * Tests the positions of a scan in order, splitting the range of positions in half. The size is exact for
+     * {@link QueryItem#ALL} until the first split.
+     */
+    private final class ScanSpliterator implements Spliterator<Entry<T>> {
+
+        private final QueryItem queryItem;
+        private final int axis;
+        private int position;
+        private int end;
+        // the number of entries left, or -1 if unknown
+        private long exactSize;
+
+        private ScanSpliterator(QueryItem queryItem, int axis, int position, int end, long exactSize) {
+            this.queryItem = queryItem;
+            this.axis = axis;
+            this.position = position;
+            this.end = end;
+            this.exactSize = exactSize;
+        }
+
+        @Override
+        public boolean tryAdvance(Consumer<? super Entry<T>> action) {
+            while (position < end) {
+                int handle = handleAt(axis, position++);
+                if (handle != NULL && boxes[handle].intersects(queryItem)) {
+                    if (exactSize > 0) {
+                        exactSize--;
+                    }
+                    action.accept(new Entry<>(value(handle), boxes[handle]));
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        public Spliterator<Entry<T>> trySplit() {
+            int middle = (position + end) >>> 1;
+            if (middle <= position) {
+                return null;
+            }
+            ScanSpliterator split = new ScanSpliterator(queryItem, axis, middle, end, -1);
+            end = middle;
+            exactSize = -1;
+            return split;
+        }
+
+        @Override
+        public long estimateSize() {
+            if (exactSize >= 0) {
+                return exactSize;
+            }
+            // every entry has two endpoints along an axis
+            return axis == HANDLES ? end - position : (end - position) / 2;
+        }
+
+        @Override
+        public int characteristics() {
+            return exactSize >= 0 ? NONNULL | SIZED : NONNULL;
+        }
+    }
+
+    /**
+     * Sweeps along the x axis, keeping the entries whose range along it contains the sweep position active and
+     * comparing each entry with the active entries as it starts.
+     */
+    @Override
+    public void forEachOverlappingPair(BiConsumer<Entry<T>, Entry<T>> consumer) {
+        sort();
+        int[] active = new int[INITIAL_CAPACITY];
+        int activeCount = 0;
+        int[] activeIndex = new int[handleCount];
+
+        int[] axisData = data[0];
+        for (int i = 0; i < endpointCount; i++) {
+            int handle = axisData[i] >>> 1;
+            BoundingBox boundingBox = boxes[handle];
+            if (boundingBox == null) {
+                continue;
+            }
+            if ((axisData[i] & 1) != 0) {
+                int index = activeIndex[handle];
+                int last = active[--activeCount];
+                active[index] = last;
+                activeIndex[last] = index;
+                continue;
+            }
+
+            for (int j = 0; j < activeCount; j++) {
+                int other = active[j];
+                if (boundingBox.intersects(boxes[other])) {
+                    consumer.accept(new Entry<>(value(other), boxes[other]), new Entry<>(value(handle), boundingBox));
+                }
+            }
+            if (activeCount == active.length) {
+                active = Arrays.copyOf(active, activeCount * 2);
+            }
+            activeIndex[handle] = activeCount;
+            active[activeCount++] = handle;
+        }
+    }
+
+    private int allocate() {
+        if (freeCount > 0) {
+            return free[--freeCount];
+        }
+        if (handleCount == values.length) {
+            int capacity = values.length * 2;
+            next = Arrays.copyOf(next, capacity);
+            values = Arrays.copyOf(values, capacity);
+            boxes = Arrays.copyOf(boxes, capacity);
+            for (int axis = 0; axis < 3; axis++) {
+                minPosition[axis] = Arrays.copyOf(minPosition[axis], capacity);
+                maxPosition[axis] = Arrays.copyOf(maxPosition[axis], capacity);
+            }
+        }
+        return handleCount++;
+    }
+
+    /**
+     * Removes the newest copy of the entry from its chain.
+     * @return The handle of the copy, or {@link #NULL} if there is none.
+     */
+    private int unlink(Entry<T> entry) {
+        Integer handle = handles.get(entry);
+        if (handle == null) {
+            return NULL;
+        }
+        if (next[handle] == NULL) {
+            handles.remove(entry);
+        } else {
+            handles.put(entry, next[handle]);
+        }
+        return handle;
+    }
+
+    // Drops the endpoints of removed entries and frees their handles, keeping the order of the rest
+    private void compact() {
+        int count = 0;
+        int sortedSurvivors = 0;
+        for (int axis = 0; axis < 3; axis++) {
+            double[] axisEndpoints = endpoints[axis];
+            int[] axisData = data[axis];
+            count = 0;
+            for (int i = 0; i < endpointCount; i++) {
+                if (i == sortedCount) {
+                    // the appended endpoints are in the same order along every axis, so this is the same for all
+                    sortedSurvivors = count;
+                }
+                int handle = axisData[i] >>> 1;
+                if (boxes[handle] != null) {
+                    place(axis, count++, axisEndpoints[i], axisData[i]);
+                } else if (axis == 0 && (axisData[i] & 1) == 0) {
+                    if (freeCount == free.length) {
+                        free = Arrays.copyOf(free, freeCount * 2);
+                    }
+                    free[freeCount++] = handle;
+                }
+            }
+        }
+        sortedCount = sortedCount == endpointCount ? count : sortedSurvivors;
+        endpointCount = count;
+        removed = 0;
+        shrinkExtents();
+    }
+
+    private void sort() {
+        int appended = endpointCount - sortedCount;
+        if (appended == 0) {
+            return;
+        }
+        // sifting moves each endpoint past about half of the others, sorting compares each about log(n) times
+        if (appended <= 2 * (32 - Integer.numberOfLeadingZeros(endpointCount))) {
+            for (int axis = 0; axis < 3; axis++) {
+                for (int i = sortedCount; i < endpointCount; i++) {
+                    sift(axis, i, i + 1);
+                }
+            }
+            sortedCount = endpointCount;
+            return;
+        }
+
+        if (removed > 0) {
+            compact();
+        } else {
+            shrinkExtents();
+        }
+        for (int axis = 0; axis < 3; axis++) {
+            sort(endpoints[axis], data[axis], 0, endpointCount - 1);
+            for (int i = 0; i < endpointCount; i++) {
+                place(axis, i, endpoints[axis][i], data[axis][i]);
+            }
+        }
+        sortedCount = endpointCount;
+    }
+
+    // Extents only grow between sorts and compactions, shrinks them back to the entries still in the lookup
+    private void shrinkExtents() {
+        Arrays.fill(maxExtent, 0);
+        for (int handle = 0; handle < handleCount; handle++) {
+            BoundingBox boundingBox = boxes[handle];
+            if (boundingBox != null) {
+                for (int axis = 0; axis < 3; axis++) {
+                    maxExtent[axis] = Math.max(maxExtent[axis], coordinate(boundingBox.max(), axis) - coordinate(boundingBox.min(), axis));
+                }
+            }
+        }
+    }
+
+    // Quicksort of [lo, hi] with a median of three pivot, ordering both arrays by endpoint
+    private static void sort(double[] keys, int[] data, int lo, int hi) {
+        while (hi - lo > INSERTION_SORT_THRESHOLD) {
+            int mid = (lo + hi) >>> 1;
+            if (after(keys[lo], data[lo], keys[mid], data[mid])) swap(keys, data, lo, mid);
+            if (after(keys[mid], data[mid], keys[hi], data[hi])) swap(keys, data, mid, hi);
+            if (after(keys[lo], data[lo], keys[mid], data[mid])) swap(keys, data, lo, mid);
+            double pivotKey = keys[mid];
+            int pivotData = data[mid];
+
+            int i = lo - 1;
+            int j = hi + 1;
+            while (true) {
+                do i++; while (after(pivotKey, pivotData, keys[i], data[i]));
+                do j--; while (after(keys[j], data[j], pivotKey, pivotData));
+                if (i >= j) break;
+                swap(keys, data, i, j);
+            }
+
+            // recurse into the smaller half, so the stack stays logarithmic
+            if (j - lo < hi - j) {
+                sort(keys, data, lo, j);
+                lo = j + 1;
+            } else {
+                sort(keys, data, j + 1, hi);
+                hi = j;
+            }
+        }
+
+        for (int i = lo + 1; i <= hi; i++) {
+            double key = keys[i];
+            int value = data[i];
+            int j = i - 1;
+            while (j >= lo && after(keys[j], data[j], key, value)) {
+                keys[j + 1] = keys[j];
+                data[j + 1] = data[j];
+                j--;
+            }
+            keys[j + 1] = key;
+            data[j + 1] = value;
+        }
+    }
+
+    private static void swap(double[] keys, int[] data, int a, int b) {
+        double key = keys[a];
+        keys[a] = keys[b];
+        keys[b] = key;
+        int value = data[a];
+        data[a] = data[b];
+        data[b] = value;
+    }
+
+    // Moves the endpoint at the position past its neighbours before the end until it is in order again
+    private void sift(int axis, int position, int end) {
+        double[] axisEndpoints = endpoints[axis];
+        int[] axisData = data[axis];
+        double key = axisEndpoints[position];
+        int value = axisData[position];
+
+        int i = position;
+        while (i > 0 && after(axisEndpoints[i - 1], axisData[i - 1], key, value)) {
+            place(axis, i, axisEndpoints[i - 1], axisData[i - 1]);
+            i--;
+        }
+        if (i == position) {
+            while (i + 1 < end && after(key, value, axisEndpoints[i + 1], axisData[i + 1])) {
+                place(axis, i, axisEndpoints[i + 1], axisData[i + 1]);
+                i++;
+            }
+        }
+        place(axis, i, key, value);
+    }
+
+    private void place(int axis, int position, double key, int value) {
+        endpoints[axis][position] = key;
+        data[axis][position] = value;
+        if ((value & 1) == 0) {
+            minPosition[axis][value >>> 1] = position;
+        } else {
+            maxPosition[axis][value >>> 1] = position;
+        }
+    }
+
+    // Minimum endpoints go before maximum endpoints at the same value, so touching entries overlap
+    private static boolean after(double keyA, int dataA, double keyB, int dataB) {
+        return keyA > keyB || (keyA == keyB && (dataA & 1) > (dataB & 1));
+    }
+
+    // The first position with an endpoint at or after the value
+    private int lowerBound(int axis, double value) {
+        double[] axisEndpoints = endpoints[axis];
+        int lo = 0;
+        int hi = endpointCount;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (axisEndpoints[mid] < value) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    // The first position with an endpoint after the value
+    private int upperBound(int axis, double value) {
+        double[] axisEndpoints = endpoints[axis];
+        int lo = 0;
+        int hi = endpointCount;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (axisEndpoints[mid] <= value) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    @SuppressWarnings("unchecked")
+    private T value(int handle) {
+        return (T) values[handle];
+    }
+
+    private static double coordinate(Vec vec, int axis) {
+        return switch (axis) {
+            case 0 -> vec.x();
+            case 1 -> vec.y();
+            default -> vec.z();
+        };
+    }
+}
@@ -2,12 +2,20 @@ package org.bbq.lookup;
 
 import org.bbq.BoundingBox;
 import org.bbq.QueryItem;
-import org.bbq.util.IntCache;
+import org.bbq.Vec;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.function.BiConsumer;
+import java.util.function.BiPredicate;
 import java.util.function.Consumer;
 
 public class TreeLookupImpl<T> implements BoundingBoxLookup<T> {
@@ -41,34 +49,67 @@ public class TreeLookupImpl<T> implements BoundingBoxLookup<T> {
         }
     }
 
-    private record Branch<T>(BoundingBox boundingBox, Node<T> left, Node<T> right) implements Node<T> {
+    // The size is kept with the branch, nodes are rebuilt along every modified path so it never goes stale
+    private record Branch<T>(BoundingBox boundingBox, Node<T> left, Node<T> right, int size) implements Node<T> {
+
+        public Branch(BoundingBox boundingBox, Node<T> left, Node<T> right) {
+            this(boundingBox, left, right, left.size() + right.size());
+        }
 
         public Branch(Node<T> left, Node<T> right) {
             this(left.boundingBox().union(right.boundingBox()), left, right);
         }
+    }
 
-        public Node<T> withLeft(@Nullable Node<T> left) {
-            if (left == null) return right;
-            return new Branch<>(left, right);
-        }
+    private Node<T> root;
 
-        public Node<T> withRight(@Nullable Node<T> right) {
-            if (right == null) return left;
-            return new Branch<>(left, right);
+    public TreeLookupImpl() {
+    }
+
+    private TreeLookupImpl(Node<T> root) {
+        this.root = root;
+    }
+
+    /**
+     * Builds the whole hierarchy at once with {@link BvhBuilder}, equal entries share a leaf.
+     */
+    TreeLookupImpl(Collection<Entry<T>> entries) {
+        Map<Entry<T>, Integer> counts = new LinkedHashMap<>();
+        for (Entry<T> entry : entries) {
+            counts.merge(entry, 1, Integer::sum);
+        }
+        if (counts.isEmpty()) {
+            return;
         }
 
-        @Override
-        public int size() {
-            return left.size() + right.size();
+        List<Entry<T>> unique = new ArrayList<>(counts.keySet());
+        BoundingBox[] boxes = new BoundingBox[unique.size()];
+        for (int i = 0; i < boxes.length; i++) {
+            boxes[i] = unique.get(i).boundingBox();
         }
+        root = BvhBuilder.build(boxes, new BvhBuilder.Assembler<>() {
+            @Override
+            public Node<T> leaf(int node, int box) {
+                Entry<T> entry = unique.get(box);
+                return new Leaf<>(entry, counts.get(entry));
+            }
+
+            @Override
+            public Node<T> branch(int node, int rightNode, Node<T> left, Node<T> right) {
+                return new Branch<>(left, right);
+            }
+        });
     }
 
-    private Node<T> root;
-    private final IntCache size = new IntCache(() -> root == null ? 0 : root.size());
+    /**
+     * Nodes are never modified, so the copy shares all of them and modifying either tree leaves the other untouched.
+     */
+    TreeLookupImpl<T> copy() {
+        return new TreeLookupImpl<>(root);
+    }
 
     @Override
     public void insert(T value, BoundingBox boundingBox) {
-        size.invalidate();
         root = insertNode(root, new Entry<>(value, boundingBox));
     }
 
@@ -84,17 +125,15 @@ public class TreeLookupImpl<T> implements BoundingBoxLookup<T> {
             }
 
             // Convert leaf node to branch node
-            Node<T> leftLeaf = new Leaf<>(leaf.entry());
-            Node<T> rightLeaf = new Leaf<>(entry);
-            return new Branch<>(leftLeaf, rightLeaf);
+            return new Branch<>(leaf, new Leaf<>(entry));
         }
 
         // Current node is a branch
         Branch<T> branch = (Branch<T>) current;
         if (shouldGoLeft(branch, entry.boundingBox())) {
-            return branch.withLeft(insertNode(branch.left, entry));
+            return balance(insertNode(branch.left, entry), branch.right);
         } else {
-            return branch.withRight(insertNode(branch.right, entry));
+            return balance(branch.left, insertNode(branch.right, entry));
         }
     }
 
@@ -108,69 +147,462 @@ public class TreeLookupImpl<T> implements BoundingBoxLookup<T> {
     }
 
     public void remove(T value, BoundingBox boundingBox) {
-        size.invalidate();
         root = removeNode(root, new Entry<>(value, boundingBox));
     }
 
-    // Private helper method for removing nodes from BVH
+    // Private helper method for removing nodes from BVH, removes at most one occurrence of the entry
     private Node<T> removeNode(Node<T> current, Entry<T> entry) {
         if (current == null) return null;
 
-        if (!current.boundingBox().intersects(entry.boundingBox())) {
-            return current; // no intersection, no removal
+        if (!current.boundingBox().contains(entry.boundingBox())) {
+            return current; // the entry cannot be in this subtree
         }
 
         return switch (current) {
             case Leaf<T> leaf -> leaf.entry().equals(entry) ? leaf.withCount(leaf.count() - 1) : leaf;
             case Branch<T> branch -> {
-                // Recursively remove from left and right subtrees
                 Node<T> newLeft = removeNode(branch.left, entry);
+                if (newLeft != branch.left) {
+                    // If the subtree is now empty, the sibling replaces this branch
+                    yield newLeft == null ? branch.right : balance(newLeft, branch.right);
+                }
                 Node<T> newRight = removeNode(branch.right, entry);
-
-                // If both subtrees are empty, return null
-                if (newLeft == null && newRight == null) {
-                    yield null;
+                if (newRight != branch.right) {
+                    yield newRight == null ? branch.left : balance(branch.left, newRight);
                 }
+                yield branch;
+            }
+        };
+    }
+
+    @Override
+    public void update(T value, BoundingBox oldBoundingBox, BoundingBox newBoundingBox) {
+        Node<T> updated = replaceNode(root, null, new Entry<>(value, oldBoundingBox), new Entry<>(value, newBoundingBox));
+        if (updated == root) {
+            // the entry was not found, or moved too far to stay in place
+            BoundingBoxLookup.super.update(value, oldBoundingBox, newBoundingBox);
+            return;
+        }
+        root = updated;
+    }
 
-                // If one subtree is empty, return the other
-                if (newLeft == null) {
-                    yield newRight;
+    // Swaps a leaf for one with the new entry, copying a single path, if the new box stays within the leaf's parent
+    private Node<T> replaceNode(Node<T> current, @Nullable BoundingBox parentBounds, Entry<T> oldEntry, Entry<T> newEntry) {
+        if (current == null || !current.boundingBox().contains(oldEntry.boundingBox())) {
+            return current;
+        }
+
+        return switch (current) {
+            case Leaf<T> leaf -> {
+                boolean inPlace = parentBounds == null || parentBounds.contains(newEntry.boundingBox());
+                yield inPlace && leaf.count() == 1 && leaf.entry().equals(oldEntry) ? new Leaf<>(newEntry) : leaf;
+            }
+            case Branch<T> branch -> {
+                Node<T> newLeft = replaceNode(branch.left, branch.boundingBox(), oldEntry, newEntry);
+                if (newLeft != branch.left) {
+                    yield balance(newLeft, branch.right);
                 }
-                if (newRight == null) {
-                    yield newLeft;
+                Node<T> newRight = replaceNode(branch.right, branch.boundingBox(), oldEntry, newEntry);
+                if (newRight != branch.right) {
+                    yield balance(branch.left, newRight);
                 }
+                yield branch;
+            }
+        };
+    }
 
-                // Otherwise, update the branch node with the new subtrees
-                yield new Branch<>(branch.boundingBox(), newLeft, newRight);
+    /**
+     * Creates a branch with bounds fitted to the given children, rotating it if that improves the tree.
+     */
+    private Branch<T> balance(Node<T> left, Node<T> right) {
+        return rotate(new Branch<>(left, right));
+    }
+
+    /**
+     * Tree rotation in the style of Kopta et al. Swaps a child with a grandchild on the other side if that reduces
+     * the surface area of the other side, which keeps the tree from degenerating under skewed insertion orders and
+     * churn. The bounds of the branch itself are unchanged by a rotation.
+     */
+    private Branch<T> rotate(Branch<T> branch) {
+        Node<T> left = branch.left;
+        Node<T> right = branch.right;
+
+        int rotation = 0;
+        double bestGain = 0;
+
+        if (right instanceof Branch<T> r) {
+            double area = r.boundingBox().surfaceArea();
+            // 1: left <-> right.left
+            double gain = area - left.boundingBox().union(r.right.boundingBox()).surfaceArea();
+            if (gain > bestGain) {
+                bestGain = gain;
+                rotation = 1;
             }
+            // 2: left <-> right.right
+            gain = area - left.boundingBox().union(r.left.boundingBox()).surfaceArea();
+            if (gain > bestGain) {
+                bestGain = gain;
+                rotation = 2;
+            }
+        }
+        if (left instanceof Branch<T> l) {
+            double area = l.boundingBox().surfaceArea();
+            // 3: right <-> left.left
+            double gain = area - right.boundingBox().union(l.right.boundingBox()).surfaceArea();
+            if (gain > bestGain) {
+                bestGain = gain;
+                rotation = 3;
+            }
+            // 4: right <-> left.right
+            gain = area - right.boundingBox().union(l.left.boundingBox()).surfaceArea();
+            if (gain > bestGain) {
+                rotation = 4;
+            }
+        }
+
+        return switch (rotation) {
+            case 1 -> new Branch<>(branch.boundingBox(), ((Branch<T>) right).left, new Branch<>(left, ((Branch<T>) right).right));
+            case 2 -> new Branch<>(branch.boundingBox(), ((Branch<T>) right).right, new Branch<>(((Branch<T>) right).left, left));
+            case 3 -> new Branch<>(branch.boundingBox(), new Branch<>(right, ((Branch<T>) left).right), ((Branch<T>) left).left);
+            case 4 -> new Branch<>(branch.boundingBox(), new Branch<>(((Branch<T>) left).left, right), ((Branch<T>) left).right);
+            default -> branch;
+        };
+    }
+
+    /**
+     * @return The number of nodes on the longest path from the root to a leaf, {@code 0} if the tree is empty.
+     */
+    public int depth() {
+        return depth(root);
+    }
+
+    private int depth(Node<T> node) {
+        return switch (node) {
+            case null -> 0;
+            case Leaf<T> ignored -> 1;
+            case Branch<T> branch -> 1 + Math.max(depth(branch.left), depth(branch.right));
         };
     }
 
+    /**
+     * Measures the quality of the tree with the surface area heuristic.
+     * @return The summed surface area of all branches relative to the surface area of the root, approximately the
+     * number of branches a random query has to test. Lower is better.
+     */
+    public double cost() {
+        if (!(root instanceof Branch<T> branch)) {
+            return 0;
+        }
+        double area = branch.boundingBox().surfaceArea();
+        return area > 0 ? branchArea(branch) / area : 0;
+    }
+
+    private double branchArea(Node<T> node) {
+        if (!(node instanceof Branch<T> branch)) {
+            return 0;
+        }
+        return branch.boundingBox().surfaceArea() + branchArea(branch.left) + branchArea(branch.right);
+    }
+
     @Override
     public int size() {
-        return size.get();
+        return root == null ? 0 : root.size();
     }
 
+    /**
+     * Takes O(1), the snapshot shares every node with the tree.
+     */
+    @Override
+    public BoundingBoxLookup<T> snapshot() {
+        return new ReadOnlyLookupImpl<>(copy());
+    }
+
+    /**
+     * Traverses the tree lazily as the iterator is advanced. Nodes are never modified, so modifying the lookup while
+     * iterating leaves the iteration on the tree as it was when the iterator was created.
+     */
     @Override
     public @NotNull Iterable<Entry<T>> visit(QueryItem queryItem) {
-        List<Entry<T>> results = new ArrayList<>();
-        queryNode(root, queryItem, results::add);
-        return results;
+        return () -> Spliterators.iterator(spliterator(queryItem));
+    }
+
+    /**
+     * Subtrees entirely within a bounding box query are counted without visiting their leaves.
+     */
+    @Override
+    public int count(QueryItem queryItem) {
+        return countNode(root, queryItem);
+    }
+
+    private int countNode(Node<T> node, QueryItem queryItem) {
+        if (node == null || !node.boundingBox().intersects(queryItem)) {
+            return 0;
+        }
+        if (queryItem instanceof QueryItem.All || (queryItem instanceof BoundingBox boundingBox && boundingBox.contains(node.boundingBox()))) {
+            return node.size();
+        }
+        return switch (node) {
+            case Leaf<T> leaf -> leaf.count;
+            case Branch<T> branch -> countNode(branch.left, queryItem) + countNode(branch.right, queryItem);
+        };
+    }
+
+    @Override
+    public boolean visitUntil(QueryItem queryItem, BiPredicate<? super T, ? super BoundingBox> visitor) {
+        return queryNode(root, queryItem, visitor);
+    }
+
+    @Override
+    public @NotNull Spliterator<Entry<T>> spliterator(QueryItem queryItem) {
+        NodeSpliterator<T> spliterator = new NodeSpliterator<>(queryItem, size());
+        if (root != null) {
+            spliterator.stack.addFirst(root);
+        }
+        return spliterator;
+    }
+
+    /**
+     * Traverses the intersecting subtrees depth first with an explicit stack. Splitting hands off the subtree at the
+     * bottom of the stack, the sibling of the highest node descended into, or splits the last subtree into its
+     * children. The size is estimated like {@link java.util.Spliterators.AbstractSpliterator}, halving on each split,
+     * and is exact for {@link QueryItem#ALL} until the first split.
+     */
+    private static final class NodeSpliterator<T> implements Spliterator<Entry<T>> {
+
+        private final QueryItem queryItem;
+        private final ArrayDeque<Node<T>> stack = new ArrayDeque<>();
+        private long estimate;
+        private boolean sized;
+
+        // copies of the current leaf's entry left to pass on
+        private Leaf<T> leaf;
+        private int remaining = 0;
+
+        private NodeSpliterator(QueryItem queryItem, long estimate) {
+            this.queryItem = queryItem;
+            this.estimate = estimate;
+            this.sized = queryItem instanceof QueryItem.All;
+        }
+
+        @Override
+        public boolean tryAdvance(Consumer<? super Entry<T>> action) {
+            while (remaining == 0) {
+                Node<T> node = stack.pollFirst();
+                if (node == null) {
+                    return false;
+                }
+                if (!node.boundingBox().intersects(queryItem)) {
+                    continue;
+                }
+                switch (node) {
+                    case Leaf<T> leaf -> {
+                        this.leaf = leaf;
+                        this.remaining = leaf.count;
+                    }
+                    case Branch<T> branch -> {
+                        stack.addFirst(branch.right);
+                        stack.addFirst(branch.left);
+                    }
+                }
+            }
+            remaining--;
+            if (sized) {
+                estimate--;
+            }
+            action.accept(leaf.entry());
+            return true;
+        }
+
+        @Override
+        public Spliterator<Entry<T>> trySplit() {
+            while (stack.size() == 1 && stack.peekFirst() instanceof Branch<T> branch) {
+                stack.pollFirst();
+                if (branch.boundingBox().intersects(queryItem)) {
+                    stack.addFirst(branch.right);
+                    stack.addFirst(branch.left);
+                }
+            }
+            if (stack.size() < 2) {
+                return null;
+            }
+            sized = false;
+            estimate >>>= 1;
+            NodeSpliterator<T> split = new NodeSpliterator<>(queryItem, estimate);
+            split.sized = false;
+            split.stack.addFirst(stack.pollLast());
+            return split;
+        }
+
+        @Override
+        public long estimateSize() {
+            return estimate;
+        }
+
+        @Override
+        public int characteristics() {
+            return sized ? NONNULL | SIZED : NONNULL;
+        }
+    }
+
+    @Override
+    public @Nullable Hit<T> raycast(Vec origin, Vec direction, double maxDistance) {
+        Ray<T> ray = new Ray<>(origin, direction, maxDistance);
+        if (root != null) {
+            raycastNode(root, ray, ray.distance(root.boundingBox()));
+        }
+        return ray.result();
+    }
+
+    // Descends into the nearer child first, so the hits found there prune the other child
+    private void raycastNode(Node<T> node, Ray<T> ray, double distance) {
+        if (!ray.reaches(distance)) {
+            return;
+        }
+        switch (node) {
+            case Leaf<T> leaf -> ray.test(leaf.entry().value(), leaf.boundingBox());
+            case Branch<T> branch -> {
+                double left = ray.distance(branch.left.boundingBox());
+                double right = ray.distance(branch.right.boundingBox());
+                if (left <= right) {
+                    raycastNode(branch.left, ray, left);
+                    raycastNode(branch.right, ray, right);
+                } else {
+                    raycastNode(branch.right, ray, right);
+                    raycastNode(branch.left, ray, left);
+                }
+            }
+        }
+    }
+
+    @Override
+    public @NotNull List<Entry<T>> nearest(Vec point, int k) {
+        Nearest<T> nearest = new Nearest<>(point, k);
+        if (root != null) {
+            nearestNode(root, nearest, root.boundingBox().distanceSquared(point));
+        }
+        return nearest.result();
+    }
+
+    // Like raycastNode, descends into the nearer child first so the entries found there prune the other child
+    private void nearestNode(Node<T> node, Nearest<T> nearest, double distance) {
+        if (!(distance < nearest.bound())) {
+            return;
+        }
+        switch (node) {
+            case Leaf<T> leaf -> {
+                for (int i = 0; i < leaf.count; i++) {
+                    nearest.offer(leaf.entry().value(), leaf.boundingBox());
+                }
+            }
+            case Branch<T> branch -> {
+                double left = branch.left.boundingBox().distanceSquared(nearest.point());
+                double right = branch.right.boundingBox().distanceSquared(nearest.point());
+                if (left <= right) {
+                    nearestNode(branch.left, nearest, left);
+                    nearestNode(branch.right, nearest, right);
+                } else {
+                    nearestNode(branch.right, nearest, right);
+                    nearestNode(branch.left, nearest, left);
+                }
+            }
+        }
+    }
+
+    @Override
+    public void visitAll(List<QueryItem> queries, BatchConsumer<T> sink) {
+        if (root == null) {
+            return;
+        }
+        QueryBatch batch = new QueryBatch(queries);
+        for (int packet = 0; packet < batch.packetCount(); packet++) {
+            queryPacket(root, batch, 0, batch.packet(packet), sink);
+        }
+    }
+
+    // The queries active for the node are in [from, to) of the batch
+    private void queryPacket(Node<T> node, QueryBatch batch, int from, int to, BatchConsumer<T> sink) {
+        int end = batch.filter(from, to, node.boundingBox());
+        switch (node) {
+            case Leaf<T> leaf -> {
+                for (int i = to; i < end; i++) {
+                    for (int j = 0; j < leaf.count; j++) {
+                        sink.accept(batch.index(i), leaf.entry());
+                    }
+                }
+            }
+            case Branch<T> branch -> {
+                if (end > to) {
+                    queryPacket(branch.left, batch, to, end, sink);
+                    queryPacket(branch.right, batch, to, end, sink);
+                }
+            }
+        }
+    }
+
+    /**
+     * Traverses the tree against itself, so only subtrees with intersecting bounds are ever compared.
+     */
+    @Override
+    public void forEachOverlappingPair(BiConsumer<Entry<T>, Entry<T>> consumer) {
+        if (root != null) {
+            selfPairs(root, consumer);
+        }
+    }
+
+    private void selfPairs(Node<T> node, BiConsumer<Entry<T>, Entry<T>> consumer) {
+        switch (node) {
+            case Leaf<T> leaf -> {
+                // copies of an entry overlap each other
+                for (int i = 1; i < leaf.count; i++) {
+                    for (int j = 0; j < i; j++) {
+                        consumer.accept(leaf.entry(), leaf.entry());
+                    }
+                }
+            }
+            case Branch<T> branch -> {
+                selfPairs(branch.left, consumer);
+                selfPairs(branch.right, consumer);
+                pairs(branch.left, branch.right, consumer);
+            }
+        }
+    }
+
+    private void pairs(Node<T> a, Node<T> b, BiConsumer<Entry<T>, Entry<T>> consumer) {
+        if (!a.boundingBox().intersects(b.boundingBox())) {
+            return;
+        }
+        if (a instanceof Leaf<T> leafA && b instanceof Leaf<T> leafB) {
+            for (int i = 0; i < leafA.count * leafB.count; i++) {
+                consumer.accept(leafA.entry(), leafB.entry());
+            }
+        } else if (b instanceof Leaf<T> || (a instanceof Branch<T> && a.boundingBox().surfaceArea() > b.boundingBox().surfaceArea())) {
+            // descend into the larger subtree
+            Branch<T> branch = (Branch<T>) a;
+            pairs(branch.left, b, consumer);
+            pairs(branch.right, b, consumer);
+        } else {
+            Branch<T> branch = (Branch<T>) b;
+            pairs(a, branch.left, consumer);
+            pairs(a, branch.right, consumer);
+        }
     }
 
-    private void queryNode(Node<T> node, QueryItem queryItem, Consumer<Entry<T>> results) {
-        if (node == null) return;
+    // Returns true if the visitor stopped the query
+    private boolean queryNode(Node<T> node, QueryItem queryItem, BiPredicate<? super T, ? super BoundingBox> visitor) {
+        if (node == null) return false;
 
         if (node.boundingBox().intersects(queryItem)) {
             if (node instanceof Leaf<T> leaf) {
                 for (int i = 0; i < leaf.count; i++) {
-                    results.accept(leaf.entry());
+                    if (visitor.test(leaf.entry().value(), leaf.boundingBox())) {
+                        return true;
+                    }
                 }
             } else {
                 Branch<T> branch = (Branch<T>) node;
-                queryNode(branch.left, queryItem, results);
-                queryNode(branch.right, queryItem, results);
+                return queryNode(branch.left, queryItem, visitor) || queryNode(branch.right, queryItem, visitor);
             }
         }
+        return false;
     }
 }
@@ -0,0 +1,169 @@
+package org.bbq.util;
+
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Arrays;
+
+/**
+ * A hash map from primitive longs to non-null values, using open addressing with linear probing.
+ * <p>
+ *     Keys are stored unboxed next to their values, so lookups neither allocate nor chase entry objects.
+ * </p>
+ */
+public class LongHashMap<V> {
+
+    private static final int INITIAL_CAPACITY = 16;
+    private static final float LOAD_FACTOR = 0.5f;
+
+    private long[] keys = new long[INITIAL_CAPACITY];
+    // null marks an empty slot
+    private Object[] values = new Object[INITIAL_CAPACITY];
+    private int mask = INITIAL_CAPACITY - 1;
+    private int size = 0;
+
+    /** Returns the value of the key, or null if there is none. */
+    public @Nullable V get(long key) {
+        for (int slot = slot(key); values[slot] != null; slot = (slot + 1) & mask) {
+            if (keys[slot] == key) {
+                return value(slot);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Sets the value of the key.
+     * @return The previous value of the key, or null if there was none.
+     */
+    public @Nullable V put(long key, V value) {
+        if (value == null) {
+            throw new NullPointerException("Values cannot be null");
+        }
+        int slot = slot(key);
+        for (; values[slot] != null; slot = (slot + 1) & mask) {
+            if (keys[slot] == key) {
+                V previous = value(slot);
+                values[slot] = value;
+                return previous;
+            }
+        }
+        keys[slot] = key;
+        values[slot] = value;
+        if (++size > values.length * LOAD_FACTOR) {
+            resize(values.length * 2);
+        }
+        return null;
+    }
+
+    /**
+     * Removes the key.
+     * @return The value of the key, or null if there was none.
+     */
+    public @Nullable V remove(long key) {
+        int slot = slot(key);
+        for (; values[slot] != null; slot = (slot + 1) & mask) {
+            if (keys[slot] == key) {
+                break;
+            }
+        }
+        if (values[slot] == null) {
+            return null;
+        }
+        V previous = value(slot);
+        size--;
+
+        // shift back the following keys of the run that would no longer be reachable from their own slot
+        int hole = slot;
+        for (int next = (hole + 1) & mask; values[next] != null; next = (next + 1) & mask) {
+            int home = slot(keys[next]);
+            if (((next - home) & mask) >= ((next - hole) & mask)) {
+                keys[hole] = keys[next];
+                values[hole] = values[next];
+                hole = next;
+            }
+        }
+        values[hole] = null;
+        return previous;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public void clear() {
+        Arrays.fill(values, null);
+        size = 0;
+    }
+
+    /**
+     * Visits every key and value in no particular order, the map must not be modified while visiting.
+     * @return true if the visitor stopped early.
+     */
+    public boolean visitUntil(Visitor<? super V> visitor) {
+        for (int slot = 0; slot < values.length; slot++) {
+            if (values[slot] != null && visitor.visit(keys[slot], value(slot))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * The number of slots, for walking over them with {@link #keyAt(int)} and {@link #valueAt(int)} where a visitor
+     * does not fit, such as in an iterator.
+     */
+    public int capacity() {
+        return values.length;
+    }
+
+    /** Returns the key in the slot, only meaningful if the slot has a value. */
+    public long keyAt(int slot) {
+        return keys[slot];
+    }
+
+    /** Returns the value in the slot, or null if the slot is empty. */
+    public @Nullable V valueAt(int slot) {
+        return value(slot);
+    }
+
+    private void resize(int capacity) {
+        long[] oldKeys = keys;
+        Object[] oldValues = values;
+        keys = new long[capacity];
+        values = new Object[capacity];
+        mask = capacity - 1;
+        for (int i = 0; i < oldValues.length; i++) {
+            if (oldValues[i] != null) {
+                int slot = slot(oldKeys[i]);
+                while (values[slot] != null) {
+                    slot = (slot + 1) & mask;
+                }
+                keys[slot] = oldKeys[i];
+                values[slot] = oldValues[i];
+            }
+        }
+    }
+
+    private int slot(long key) {
+        // the murmur3 finalizer, so every bit of the key affects the low bits used for the slot
+        long hash = (key ^ (key >>> 33)) * 0xFF51AFD7ED558CCDL;
+        hash = (hash ^ (hash >>> 33)) * 0xC4CEB9FE1A85EC53L;
+        return (int) (hash ^ (hash >>> 33)) & mask;
+    }
+
+    @SuppressWarnings("unchecked")
+    private V value(int slot) {
+        return (V) values[slot];
+    }
+
+    public interface Visitor<V> {
+        /**
+         * @return true to stop visiting.
+         */
+        boolean visit(long key, V value);
+    }
+}
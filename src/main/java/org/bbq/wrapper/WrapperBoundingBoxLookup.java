@@ -26,4 +26,16 @@ public interface WrapperBoundingBoxLookup<T, B, Q> extends WrapperBoundingBoxCol
      * @param boundingBox The bounding box to remove.
      */
     void remove(T value, B boundingBox);
+
+    /**
+     * Moves an entry from one bounding box to another.
+     * @param value The value of the entry.
+     * @param oldBoundingBox The bounding box the entry currently has.
+     * @param newBoundingBox The bounding box the entry should have.
+     * @see org.bbq.lookup.BoundingBoxLookup#update(Object, org.bbq.BoundingBox, org.bbq.BoundingBox)
+     */
+    default void update(T value, B oldBoundingBox, B newBoundingBox) {
+        remove(value, oldBoundingBox);
+        insert(value, newBoundingBox);
+    }
 }
@@ -28,6 +28,11 @@ class WrapperBoundingBoxLookupImpl<T, B, Q> implements WrapperBoundingBoxLookup<
         lookup.insert(value, boundingBoxWrapper.toBoundingBox(boundingBox));
     }
 
+    @Override
+    public void update(T value, B oldBoundingBox, B newBoundingBox) {
+        lookup.update(value, boundingBoxWrapper.toBoundingBox(oldBoundingBox), boundingBoxWrapper.toBoundingBox(newBoundingBox));
+    }
+
     @Override
     public void remove(T value) {
         lookup.remove(value);
@@ -1,13 +1,15 @@
 package org.bbq.lookup;
 
 import org.bbq.BoundingBox;
+import org.bbq.Line;
 import org.bbq.QueryItem;
+import org.bbq.Sphere;
 import org.bbq.Vec;
 import org.junit.jupiter.api.Test;
 
 import java.util.*;
 
-import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.*;
 
 public class LookupUnitTests {
 
@@ -72,15 +74,7 @@ public class LookupUnitTests {
 
         // insert random bounding boxes
         for (int i = 0; i < 10000; i++) {
-            double minX = random.nextDouble(0, 100);
-            double minY = random.nextDouble(0, 100);
-            double minZ = random.nextDouble(0, 100);
-
-            double maxX = random.nextDouble(minX, 100);
-            double maxY = random.nextDouble(minY, 100);
-            double maxZ = random.nextDouble(minZ, 100);
-
-            BoundingBox boundingBox = new BoundingBox(new Vec(minX, minY, minZ), new Vec(maxX, maxY, maxZ));
+            BoundingBox boundingBox = randomBoundingBox(random);
             String randomValue = new UUID(random.nextLong(), random.nextLong()).toString();
 
             for (var lookup : lookups) {
@@ -92,14 +86,944 @@ public class LookupUnitTests {
         assertLookupsContentEquals(lookups);
     }
 
+    @Test
+    public void callbackVisitMatchesIterableVisit() {
+        Random random = new Random(7);
+        for (BoundingBoxLookup<String> lookup : generateLookups()) {
+            for (int i = 0; i < 1000; i++) {
+                lookup.insert(String.valueOf(i), randomSmallBoundingBox(random));
+            }
+
+            for (int i = 0; i < 100; i++) {
+                BoundingBox query = randomSmallBoundingBox(random);
+                for (QueryItem queryItem : List.of(query, query.min(), QueryItem.ALL)) {
+                    List<BoundingBoxLookup.Entry<String>> result = new ArrayList<>();
+                    lookup.visit(queryItem, (value, boundingBox) -> result.add(new BoundingBoxLookup.Entry<>(value, boundingBox)));
+
+                    assertEquals(entryCounts(visitEntriesList(lookup, queryItem)), entryCounts(result));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void queriesAfterRemovalMatchListLookup() {
+        Random random = new Random(11);
+        BoundingBoxLookup<String> expected = BoundingBoxLookups.list();
+        Collection<BoundingBoxLookup<String>> lookups = generateLookups();
+
+        List<BoundingBoxLookup.Entry<String>> inserted = new ArrayList<>();
+        for (int i = 0; i < 2000; i++) {
+            inserted.add(new BoundingBoxLookup.Entry<>(String.valueOf(i % 1500), randomSmallBoundingBox(random)));
+        }
+        for (var entry : inserted) {
+            expected.insert(entry.value(), entry.boundingBox());
+            lookups.forEach(lookup -> lookup.insert(entry.value(), entry.boundingBox()));
+        }
+        for (int i = 0; i < 500; i++) {
+            var entry = inserted.get(random.nextInt(inserted.size()));
+            expected.remove(entry.value(), entry.boundingBox());
+            lookups.forEach(lookup -> lookup.remove(entry.value(), entry.boundingBox()));
+        }
+
+        for (var lookup : lookups) {
+            assertEquals(expected.size(), lookup.size());
+            for (int i = 0; i < 100; i++) {
+                BoundingBox query = randomSmallBoundingBox(random);
+                for (QueryItem queryItem : List.of(query, query.max(), QueryItem.ALL)) {
+                    assertEquals(entryCounts(visitEntriesList(expected, queryItem)), entryCounts(visitEntriesList(lookup, queryItem)));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void updateMatchesRemoveAndInsert() {
+        Random random = new Random(19);
+        BoundingBoxLookup<String> expected = BoundingBoxLookups.list();
+        Collection<BoundingBoxLookup<String>> lookups = generateLookups();
+
+        List<BoundingBox> boxes = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            BoundingBox boundingBox = randomSmallBoundingBox(random);
+            String value = String.valueOf(i);
+            boxes.add(boundingBox);
+            expected.insert(value, boundingBox);
+            lookups.forEach(lookup -> lookup.insert(value, boundingBox));
+        }
+
+        for (int round = 0; round < 5; round++) {
+            for (int i = 0; i < boxes.size(); i++) {
+                BoundingBox oldBox = boxes.get(i);
+                // mostly small moves, with the occasional teleport
+                Vec offset = random.nextInt(10) == 0
+                        ? new Vec(random.nextDouble(-50, 50), random.nextDouble(-50, 50), random.nextDouble(-50, 50))
+                        : new Vec(random.nextDouble(-0.2, 0.2), random.nextDouble(-0.2, 0.2), random.nextDouble(-0.2, 0.2));
+                BoundingBox newBox = new BoundingBox(oldBox.min().add(offset), oldBox.max().add(offset));
+                boxes.set(i, newBox);
+
+                String value = String.valueOf(i);
+                expected.remove(value, oldBox);
+                expected.insert(value, newBox);
+                lookups.forEach(lookup -> lookup.update(value, oldBox, newBox));
+            }
+
+            for (var lookup : lookups) {
+                assertEquals(expected.size(), lookup.size());
+                for (int i = 0; i < 20; i++) {
+                    BoundingBox query = randomSmallBoundingBox(random);
+                    assertEquals(entryCounts(visitEntriesList(expected, query)), entryCounts(visitEntriesList(lookup, query)));
+                }
+                assertEquals(entryCounts(visitEntriesList(expected, QueryItem.ALL)), entryCounts(visitEntriesList(lookup, QueryItem.ALL)));
+            }
+        }
+
+        // teleports so far that walking every cell between the old and the new box would never finish
+        for (int i = 0; i < 20; i++) {
+            BoundingBox oldBox = boxes.get(i);
+            Vec offset = new Vec(i % 2 == 0 ? 1e6 : -1e6, 1e6, i % 3 == 0 ? 1e6 : -1e6);
+            BoundingBox newBox = new BoundingBox(oldBox.min().add(offset), oldBox.max().add(offset));
+            boxes.set(i, newBox);
+
+            String value = String.valueOf(i);
+            expected.remove(value, oldBox);
+            expected.insert(value, newBox);
+            lookups.forEach(lookup -> lookup.update(value, oldBox, newBox));
+        }
+        for (var lookup : lookups) {
+            assertEquals(expected.size(), lookup.size());
+            assertEquals(entryCounts(visitEntriesList(expected, boxes.getFirst())), entryCounts(visitEntriesList(lookup, boxes.getFirst())));
+            assertEquals(entryCounts(visitEntriesList(expected, QueryItem.ALL)), entryCounts(visitEntriesList(lookup, QueryItem.ALL)));
+        }
+    }
+
+    @Test
+    public void removeValueRemovesEveryEntryOfTheValue() {
+        Random random = new Random(23);
+        BoundingBoxLookup<String> expected = BoundingBoxLookups.list();
+        List<BoundingBoxLookup<String>> lookups = new ArrayList<>(generateLookups());
+        lookups.add(BoundingBoxLookups.indexed(BoundingBoxLookups.tree()));
+        lookups.add(BoundingBoxLookups.indexed(BoundingBoxLookups.dynamicTree()));
+
+        for (int i = 0; i < 1000; i++) {
+            // a few entries per value, some of them duplicates
+            String value = String.valueOf(i % 300);
+            BoundingBox boundingBox = i % 7 == 0 ? new BoundingBox(Vec.ZERO, Vec.ONE) : randomSmallBoundingBox(random);
+            expected.insert(value, boundingBox);
+            lookups.forEach(lookup -> lookup.insert(value, boundingBox));
+        }
+
+        for (int i = 0; i < 300; i += 3) {
+            String value = String.valueOf(i);
+            expected.remove(value);
+            lookups.forEach(lookup -> lookup.remove(value));
+        }
+
+        for (var lookup : lookups) {
+            assertEquals(expected.size(), lookup.size());
+            assertEquals(entryCounts(visitEntriesList(expected, QueryItem.ALL)), entryCounts(visitEntriesList(lookup, QueryItem.ALL)));
+        }
+    }
+
+    @Test
+    public void gridGrowingOutwardsMatchesListLookup() {
+        Random random = new Random(29);
+        BoundingBoxLookup<String> expected = BoundingBoxLookups.list();
+        BoundingBoxLookup<String> grid = BoundingBoxLookups.grid();
+
+        for (int i = 0; i < 1000; i++) {
+            // every entry lands further out, growing the bounds
+            Vec min = new Vec(i * 10, -i * 5, i % 2 == 0 ? i : -i);
+            BoundingBox boundingBox = new BoundingBox(min, min.add(random.nextDouble(1, 20)));
+            String value = String.valueOf(i);
+            expected.insert(value, boundingBox);
+            grid.insert(value, boundingBox);
+        }
+
+        assertLookupsContentEquals(List.of(expected, grid));
+        for (int i = 0; i < 100; i++) {
+            BoundingBox query = new BoundingBox(new Vec(i * 100, -i * 50, -i * 10), new Vec(i * 100 + 200, -i * 50 + 100, i * 10));
+            assertEquals(entryCounts(visitEntriesList(expected, query)), entryCounts(visitEntriesList(grid, query)));
+        }
+    }
+
+    @Test
+    public void hashGridMatchesListLookupAcrossSparseCells() {
+        Random random = new Random(31);
+        BoundingBoxLookup<String> expected = BoundingBoxLookups.list();
+        BoundingBoxLookup<String> hashGrid = BoundingBoxLookups.hashGrid(2);
+
+        for (int i = 0; i < 1000; i++) {
+            // a few far apart clusters, on both sides of the origin
+            Vec offset = new Vec(random.nextInt(-3, 3) * 1e6, random.nextInt(-3, 3) * 1e4, random.nextInt(-3, 3) * 1e6);
+            BoundingBox boundingBox = randomSmallBoundingBox(random);
+            boundingBox = new BoundingBox(boundingBox.min().add(offset), boundingBox.max().add(offset));
+            String value = String.valueOf(i);
+            expected.insert(value, boundingBox);
+            hashGrid.insert(value, boundingBox);
+        }
+
+        assertEquals(expected.size(), hashGrid.size());
+        assertLookupsContentEquals(List.of(expected, hashGrid));
+        for (int i = 0; i < 200; i++) {
+            Vec min = new Vec(random.nextInt(-3, 3) * 1e6, random.nextInt(-3, 3) * 1e4, random.nextInt(-3, 3) * 1e6);
+            // both small queries probing cells and huge queries scanning the occupied cells
+            Vec size = new Vec(i % 2 == 0 ? 50 : 3e6);
+            BoundingBox query = new BoundingBox(min, min.add(size));
+            assertEquals(entryCounts(visitEntriesList(expected, query)), entryCounts(visitEntriesList(hashGrid, query)));
+        }
+    }
+
+    @Test
+    public void gridMatchesListLookupUnderChurnInCrowdedCells() {
+        Random random = new Random(41);
+        BoundingBoxLookup<String> expected = BoundingBoxLookups.list();
+        List<BoundingBoxLookup<String>> grids = List.of(new GridLookupImpl<>(4), BoundingBoxLookups.grid(new BoundingBox(Vec.ZERO, new Vec(100)), 4));
+
+        // a few hundred entries crowding a handful of cells, with duplicates sharing a handle chain
+        List<BoundingBoxLookup.Entry<String>> entries = new ArrayList<>();
+        for (int i = 0; i < 3000; i++) {
+            int choice = random.nextInt(4);
+            if (entries.isEmpty() || choice == 0) {
+                String value = String.valueOf(random.nextInt(100));
+                Vec min = new Vec(random.nextDouble(40, 60), random.nextDouble(40, 60), random.nextDouble(40, 60));
+                BoundingBoxLookup.Entry<String> entry = new BoundingBoxLookup.Entry<>(value, new BoundingBox(min, min.add(random.nextDouble(0, 5))));
+                entries.add(entry);
+                expected.insert(entry.value(), entry.boundingBox());
+                grids.forEach(grid -> grid.insert(entry.value(), entry.boundingBox()));
+            } else if (choice == 1) {
+                BoundingBoxLookup.Entry<String> entry = entries.remove(random.nextInt(entries.size()));
+                expected.remove(entry.value(), entry.boundingBox());
+                grids.forEach(grid -> grid.remove(entry.value(), entry.boundingBox()));
+            } else {
+                int index = random.nextInt(entries.size());
+                BoundingBoxLookup.Entry<String> entry = entries.get(index);
+                Vec offset = new Vec(random.nextDouble(-10, 10), random.nextDouble(-10, 10), random.nextDouble(-10, 10));
+                BoundingBox newBox = new BoundingBox(entry.boundingBox().min().add(offset), entry.boundingBox().max().add(offset));
+                entries.set(index, new BoundingBoxLookup.Entry<>(entry.value(), newBox));
+                expected.update(entry.value(), entry.boundingBox(), newBox);
+                grids.forEach(grid -> grid.update(entry.value(), entry.boundingBox(), newBox));
+            }
+        }
+
+        for (var grid : grids) {
+            assertEquals(expected.size(), grid.size());
+            for (int i = 0; i < 50; i++) {
+                Vec min = new Vec(random.nextDouble(30, 70), random.nextDouble(30, 70), random.nextDouble(30, 70));
+                BoundingBox query = new BoundingBox(min, min.add(random.nextDouble(1, 20)));
+                assertEquals(entryCounts(visitEntriesList(expected, query)), entryCounts(visitEntriesList(grid, query)));
+            }
+        }
+        assertLookupsContentEquals(List.of(expected, grids.get(0), grids.get(1)));
+    }
+
+    @Test
+    public void flatTreeMatchesListLookupWithEmptyLeaves() {
+        Random random = new Random(53);
+        BoundingBoxLookup<String> expected = BoundingBoxLookups.list();
+        BoundingBoxLookup<String> flatTree = BoundingBoxLookups.flatTree();
+
+        List<BoundingBoxLookup.Entry<String>> entries = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            // duplicates share a slot chain
+            var entry = i % 10 == 9
+                    ? entries.get(random.nextInt(entries.size()))
+                    : new BoundingBoxLookup.Entry<>(String.valueOf(i), randomSmallBoundingBox(random));
+            entries.add(entry);
+            expected.insert(entry.value(), entry.boundingBox());
+            flatTree.insert(entry.value(), entry.boundingBox());
+        }
+
+        // removals and updates between queries leave empty leaves in the built hierarchy, inserts append leaves
+        for (int i = 0; i < 900; i++) {
+            int index = random.nextInt(entries.size());
+            var entry = entries.get(index);
+            int operation = random.nextInt(3);
+            if (operation == 0) {
+                entries.remove(index);
+                expected.remove(entry.value(), entry.boundingBox());
+                flatTree.remove(entry.value(), entry.boundingBox());
+            } else if (operation == 1) {
+                var inserted = random.nextBoolean() ? entry : new BoundingBoxLookup.Entry<>("new" + i, randomSmallBoundingBox(random));
+                entries.add(inserted);
+                expected.insert(inserted.value(), inserted.boundingBox());
+                flatTree.insert(inserted.value(), inserted.boundingBox());
+            } else {
+                BoundingBox newBox = randomSmallBoundingBox(random);
+                entries.set(index, new BoundingBoxLookup.Entry<>(entry.value(), newBox));
+                expected.update(entry.value(), entry.boundingBox(), newBox);
+                flatTree.update(entry.value(), entry.boundingBox(), newBox);
+            }
+
+            BoundingBox query = randomSmallBoundingBox(random);
+            assertEquals(entryCounts(visitEntriesList(expected, query)), entryCounts(visitEntriesList(flatTree, query)));
+            if (i % 50 == 0) {
+                assertEquals(entryCounts(visitEntriesList(expected, QueryItem.ALL)), entryCounts(visitEntriesList(flatTree, QueryItem.ALL)));
+                assertEquals(expected.size(), flatTree.nearest(query.min(), expected.size() + 1).size());
+
+                Map<List<BoundingBoxLookup.Entry<String>>, Integer> expectedPairs = new HashMap<>();
+                expected.forEachOverlappingPair((a, b) -> expectedPairs.merge(pair(a, b), 1, Integer::sum));
+                Map<List<BoundingBoxLookup.Entry<String>>, Integer> pairs = new HashMap<>();
+                flatTree.forEachOverlappingPair((a, b) -> pairs.merge(pair(a, b), 1, Integer::sum));
+                assertEquals(expectedPairs, pairs);
+            }
+        }
+        assertEquals(expected.size(), flatTree.size());
+        assertEquals(expected.size(), flatTree.stream(QueryItem.ALL).count());
+    }
+
+    @Test
+    public void flatTreeKeepsEveryCopyOfADuplicateEntry() {
+        BoundingBoxLookup<String> flatTree = BoundingBoxLookups.flatTree();
+        BoundingBox boundingBox = new BoundingBox(Vec.ZERO, Vec.ONE);
+        BoundingBox moved = new BoundingBox(new Vec(5), new Vec(6));
+        for (int i = 0; i < 100; i++) {
+            flatTree.insert(String.valueOf(i), new BoundingBox(new Vec(10 + i), new Vec(11 + i)));
+        }
+
+        // two copies in the built hierarchy, then a third appended after it
+        flatTree.insert("a", boundingBox);
+        flatTree.insert("a", boundingBox);
+        assertEquals(List.of("a", "a"), visitList(flatTree, boundingBox));
+        flatTree.insert("a", boundingBox);
+        assertEquals(List.of("a", "a", "a"), visitList(flatTree, boundingBox));
+
+        // each update and removal takes one copy off the chain, the rest stay where they are
+        flatTree.update("a", boundingBox, moved);
+        assertEquals(List.of("a", "a"), visitList(flatTree, boundingBox));
+        assertEquals(List.of("a"), visitList(flatTree, moved));
+        flatTree.remove("a", boundingBox);
+        assertEquals(List.of("a"), visitList(flatTree, boundingBox));
+        flatTree.remove("a", boundingBox);
+        flatTree.remove("a", boundingBox);
+        assertEquals(List.of(), visitList(flatTree, boundingBox));
+        assertEquals(List.of("a"), visitList(flatTree, moved));
+        assertEquals(101, flatTree.size());
+    }
+
+    @Test
+    public void sweepAndPruneMatchesListLookupUnderInterleavedChurn() {
+        Random random = new Random(37);
+        BoundingBoxLookup<String> expected = BoundingBoxLookups.list();
+        BoundingBoxLookup<String> sweepAndPrune = BoundingBoxLookups.sweepAndPrune();
+
+        Map<String, BoundingBox> boxes = new HashMap<>();
+        for (int i = 0; i < 5000; i++) {
+            String value = String.valueOf(random.nextInt(500));
+            BoundingBox oldBox = boxes.get(value);
+            if (oldBox == null) {
+                BoundingBox boundingBox = randomSmallBoundingBox(random);
+                boxes.put(value, boundingBox);
+                expected.insert(value, boundingBox);
+                sweepAndPrune.insert(value, boundingBox);
+            } else if (random.nextInt(4) == 0) {
+                boxes.remove(value);
+                expected.remove(value, oldBox);
+                sweepAndPrune.remove(value, oldBox);
+            } else {
+                Vec offset = new Vec(random.nextDouble(-1, 1), random.nextDouble(-1, 1), random.nextDouble(-1, 1));
+                BoundingBox newBox = new BoundingBox(oldBox.min().add(offset), oldBox.max().add(offset));
+                boxes.put(value, newBox);
+                expected.remove(value, oldBox);
+                expected.insert(value, newBox);
+                sweepAndPrune.update(value, oldBox, newBox);
+            }
+
+            // queries between modifications, first often enough that inserts are sifted into place, then rarely
+            // enough that they are sorted at once
+            if (i % (i < 2500 ? 7 : 97) == 0) {
+                BoundingBox query = randomSmallBoundingBox(random);
+                assertEquals(entryCounts(visitEntriesList(expected, query)), entryCounts(visitEntriesList(sweepAndPrune, query)));
+            }
+        }
+        assertEquals(expected.size(), sweepAndPrune.size());
+        assertLookupsContentEquals(List.of(expected, sweepAndPrune));
+    }
+
+    @Test
+    public void concurrentLookupKeepsEveryWriteFromManyThreads() throws InterruptedException {
+        BoundingBoxLookup<String> lookup = BoundingBoxLookups.concurrent();
+        BoundingBoxLookup<String> expected = BoundingBoxLookups.list();
+        int threadCount = 4;
+        int perThread = 500;
+
+        List<List<BoundingBox>> boxes = new ArrayList<>();
+        Random random = new Random(41);
+        for (int thread = 0; thread < threadCount; thread++) {
+            List<BoundingBox> threadBoxes = new ArrayList<>();
+            for (int i = 0; i < perThread; i++) {
+                BoundingBox boundingBox = randomSmallBoundingBox(random);
+                threadBoxes.add(boundingBox);
+                // every other entry is moved once by its writer
+                Vec offset = i % 2 == 0 ? new Vec(0.5) : Vec.ZERO;
+                expected.insert(thread + ":" + i, new BoundingBox(boundingBox.min().add(offset), boundingBox.max().add(offset)));
+            }
+            boxes.add(threadBoxes);
+        }
+
+        List<Thread> threads = new ArrayList<>();
+        List<Throwable> failures = Collections.synchronizedList(new ArrayList<>());
+        for (int thread = 0; thread < threadCount; thread++) {
+            int writer = thread;
+            threads.add(new Thread(() -> {
+                List<BoundingBox> threadBoxes = boxes.get(writer);
+                for (int i = 0; i < perThread; i++) {
+                    lookup.insert(writer + ":" + i, threadBoxes.get(i));
+                }
+                for (int i = 0; i < perThread; i += 2) {
+                    BoundingBox oldBox = threadBoxes.get(i);
+                    lookup.update(writer + ":" + i, oldBox, new BoundingBox(oldBox.min().add(0.5), oldBox.max().add(0.5)));
+                }
+            }));
+            // readers only ever see whole entries, and never fewer than were there when they started
+            threads.add(new Thread(() -> {
+                int lastSize = 0;
+                for (int i = 0; i < 200; i++) {
+                    int size = lookup.size();
+                    List<BoundingBoxLookup.Entry<String>> entries = visitEntriesList(lookup, QueryItem.ALL);
+                    if (entries.size() < lastSize || size < lastSize) {
+                        failures.add(new AssertionError("Lookup shrank from " + lastSize + " to " + entries.size()));
+                    }
+                    lastSize = entries.size();
+                }
+            }));
+        }
+        threads.forEach(Thread::start);
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertEquals(List.of(), failures);
+        assertEquals(expected.size(), lookup.size());
+        assertLookupsContentEquals(List.of(expected, lookup));
+    }
+
+    @Test
+    public void snapshotsAreUnaffectedByLaterModifications() {
+        for (var lookup : generateLookups()) {
+            Random random = new Random(43);
+            BoundingBoxLookup<String> expected = BoundingBoxLookups.list();
+            List<BoundingBox> boxes = new ArrayList<>();
+            for (int i = 0; i < 300; i++) {
+                BoundingBox boundingBox = randomSmallBoundingBox(random);
+                boxes.add(boundingBox);
+                expected.insert(String.valueOf(i), boundingBox);
+                lookup.insert(String.valueOf(i), boundingBox);
+            }
+
+            BoundingBoxLookup<String> snapshot = lookup.snapshot();
+            for (int i = 0; i < 300; i++) {
+                BoundingBox oldBox = boxes.get(i);
+                switch (i % 3) {
+                    case 0 -> lookup.remove(String.valueOf(i), oldBox);
+                    case 1 -> lookup.update(String.valueOf(i), oldBox, new BoundingBox(oldBox.min().add(0.5), oldBox.max().add(0.5)));
+                    // far outside the other entries, so growing grids are rebuilt
+                    default -> lookup.insert(String.valueOf(i + 300), new BoundingBox(new Vec(-1000 - i), new Vec(-999 - i)));
+                }
+            }
+            BoundingBoxLookup<String> laterSnapshot = lookup.snapshot();
+            lookup.insert("after", boxes.getFirst());
+
+            assertEquals(expected.size(), snapshot.size());
+            assertLookupsContentEquals(List.of(expected, snapshot));
+            for (int i = 0; i < 20; i++) {
+                BoundingBox query = randomSmallBoundingBox(random);
+                assertEquals(entryCounts(visitEntriesList(expected, query)), entryCounts(visitEntriesList(snapshot, query)));
+            }
+            assertEquals(lookup.size() - 1, laterSnapshot.size());
+            assertThrows(UnsupportedOperationException.class, () -> snapshot.insert("after", boxes.getFirst()));
+        }
+    }
+
+    @Test
+    public void parallelVisitMatchesVisit() {
+        Random random = new Random(47);
+        Collection<BoundingBoxLookup<String>> lookups = generateLookups();
+        for (int i = 0; i < 5000; i++) {
+            BoundingBox boundingBox = randomSmallBoundingBox(random);
+            String value = String.valueOf(i % 4000);
+            lookups.forEach(lookup -> lookup.insert(value, boundingBox));
+        }
+
+        List<QueryItem> queries = new ArrayList<>(List.of(QueryItem.ALL, new BoundingBox(new Vec(20), new Vec(70))));
+        queries.add(new Sphere(new Vec(50), 30));
+        queries.add(new Line(new Vec(0), new Vec(100)));
+        for (var lookup : lookups) {
+            for (QueryItem query : queries) {
+                Queue<BoundingBoxLookup.Entry<String>> visited = new java.util.concurrent.ConcurrentLinkedQueue<>();
+                lookup.parallelVisit(query, (value, boundingBox) -> visited.add(new BoundingBoxLookup.Entry<>(value, boundingBox)));
+                assertEquals(entryCounts(visitEntriesList(lookup, query)), entryCounts(new ArrayList<>(visited)));
+            }
+        }
+    }
+
+    @Test
+    public void streamsMatchVisitAndReportTheirSize() {
+        Random random = new Random(53);
+        Collection<BoundingBoxLookup<String>> lookups = generateLookups();
+        for (int i = 0; i < 3000; i++) {
+            BoundingBox boundingBox = randomSmallBoundingBox(random);
+            String value = String.valueOf(i % 2500);
+            lookups.forEach(lookup -> lookup.insert(value, boundingBox));
+        }
+
+        for (var lookup : lookups) {
+            Spliterator<BoundingBoxLookup.Entry<String>> all = lookup.spliterator(QueryItem.ALL);
+            assertTrue(all.hasCharacteristics(Spliterator.SIZED | Spliterator.NONNULL));
+            assertEquals(lookup.size(), all.getExactSizeIfKnown());
+
+            for (QueryItem query : List.of(QueryItem.ALL, new BoundingBox(new Vec(20), new Vec(70)), new Vec(50), new Line(new Vec(0), new Vec(100)))) {
+                Map<BoundingBoxLookup.Entry<String>, Integer> expected = entryCounts(visitEntriesList(lookup, query));
+                assertEquals(expected, entryCounts(lookup.stream(query).toList()));
+                assertEquals(expected, entryCounts(lookup.stream(query).parallel().toList()));
+            }
+            assertTrue(lookup.stream(new BoundingBox(new Vec(20), new Vec(70))).findAny().isPresent());
+        }
+    }
+
+    @Test
+    public void anyCountAndFirstMatchVisit() {
+        Random random = new Random(59);
+        Collection<BoundingBoxLookup<String>> lookups = generateLookups();
+        for (int i = 0; i < 1000; i++) {
+            BoundingBox boundingBox = randomSmallBoundingBox(random);
+            String value = String.valueOf(i % 800);
+            lookups.forEach(lookup -> lookup.insert(value, boundingBox));
+        }
+
+        for (var lookup : lookups) {
+            assertEquals(lookup.size(), lookup.count(QueryItem.ALL));
+            for (int i = 0; i < 50; i++) {
+                QueryItem query = i % 2 == 0 ? randomSmallBoundingBox(random) : new BoundingBox(new Vec(random.nextDouble(0, 100)), new Vec(random.nextDouble(100, 140)));
+                List<BoundingBoxLookup.Entry<String>> visited = visitEntriesList(lookup, query);
+                assertEquals(!visited.isEmpty(), lookup.any(query));
+                assertEquals(visited.size(), lookup.count(query));
+                BoundingBoxLookup.Entry<String> first = lookup.first(query);
+                assertEquals(visited.isEmpty(), first == null);
+                assertTrue(first == null || visited.contains(first));
+            }
+        }
+    }
+
+    @Test
+    public void lineQueriesMatchListLookup() {
+        Random random = new Random(37);
+        Collection<BoundingBoxLookup<String>> lookups = generateLookups();
+        BoundingBoxLookup<String> expected = BoundingBoxLookups.list();
+
+        for (int i = 0; i < 1000; i++) {
+            BoundingBox boundingBox = randomSmallBoundingBox(random);
+            String value = String.valueOf(i);
+            expected.insert(value, boundingBox);
+            lookups.forEach(lookup -> lookup.insert(value, boundingBox));
+        }
+
+        for (int i = 0; i < 200; i++) {
+            Vec start = new Vec(random.nextDouble(-20, 120), random.nextDouble(-20, 120), random.nextDouble(-20, 120));
+            Vec end = switch (i % 3) {
+                // axis aligned, so the walk never steps along the other axes
+                case 0 -> start.withX(random.nextDouble(-20, 120));
+                case 1 -> start.add(random.nextDouble(-5, 5), random.nextDouble(-5, 5), random.nextDouble(-5, 5));
+                default -> new Vec(random.nextDouble(-20, 120), random.nextDouble(-20, 120), random.nextDouble(-20, 120));
+            };
+            Line line = new Line(start, end);
+            Map<BoundingBoxLookup.Entry<String>, Integer> expectedCounts = entryCounts(visitEntriesList(expected, line));
+            for (var lookup : lookups) {
+                assertEquals(expectedCounts, entryCounts(visitEntriesList(lookup, line)));
+                List<BoundingBoxLookup.Entry<String>> visited = new ArrayList<>();
+                lookup.visit(line, (value, boundingBox) -> visited.add(new BoundingBoxLookup.Entry<>(value, boundingBox)));
+                assertEquals(expectedCounts, entryCounts(visited));
+            }
+        }
+    }
+
+    @Test
+    public void gridLineQueriesVisitCellsInOrder() {
+        for (var lookup : List.of(BoundingBoxLookups.<String>grid(), BoundingBoxLookups.<String>hashGrid(4))) {
+            // one small box per cell along the x axis
+            for (int i = 0; i < 10; i++) {
+                Vec min = new Vec(i * 10 + 2, 2, 2);
+                lookup.insert(String.valueOf(i), new BoundingBox(min, min.add(1)));
+            }
+            // and enough boxes away from the line that walking its cells is cheaper than scanning every cell
+            for (int i = 0; i < 100; i++) {
+                Vec min = new Vec(i, 50, i);
+                lookup.insert("filler", new BoundingBox(min, min.add(1)));
+            }
+
+            List<String> forwards = new ArrayList<>();
+            lookup.visitUntil(new Line(new Vec(0, 2.5, 2.5), new Vec(100, 2.5, 2.5)), (value, boundingBox) -> {
+                forwards.add(value);
+                return false;
+            });
+            assertEquals(List.of("0", "1", "2", "3", "4", "5", "6", "7", "8", "9"), forwards);
+
+            List<String> first = new ArrayList<>();
+            lookup.visitUntil(new Line(new Vec(100, 2.5, 2.5), new Vec(0, 2.5, 2.5)), (value, boundingBox) -> first.add(value));
+            assertEquals(List.of("9"), first);
+        }
+    }
+
+    @Test
+    public void raycastFindsNearestHit() {
+        Random random = new Random(41);
+        Collection<BoundingBoxLookup<String>> lookups = generateLookups();
+        BoundingBoxLookup<String> expected = BoundingBoxLookups.list();
+
+        for (int i = 0; i < 1000; i++) {
+            BoundingBox boundingBox = randomSmallBoundingBox(random);
+            String value = String.valueOf(i);
+            expected.insert(value, boundingBox);
+            lookups.forEach(lookup -> lookup.insert(value, boundingBox));
+        }
+
+        for (int i = 0; i < 200; i++) {
+            Vec origin = new Vec(random.nextDouble(-20, 120), random.nextDouble(-20, 120), random.nextDouble(-20, 120));
+            Vec direction = new Vec(random.nextDouble(-1, 1), random.nextDouble(-1, 1), i % 4 == 0 ? 0 : random.nextDouble(-1, 1));
+            double maxDistance = random.nextDouble(1, 200);
+
+            List<BoundingBoxLookup.Hit<String>> hits = expected.raycastAll(origin, direction, maxDistance);
+            for (int j = 1; j < hits.size(); j++) {
+                assertTrue(hits.get(j - 1).distance() <= hits.get(j).distance());
+            }
+            for (var lookup : lookups) {
+                BoundingBoxLookup.Hit<String> hit = lookup.raycast(origin, direction, maxDistance);
+                if (hits.isEmpty()) {
+                    assertNull(hit);
+                    continue;
+                }
+                assertNotNull(hit);
+                // ties may resolve to either entry
+                assertEquals(hits.getFirst().distance(), hit.distance());
+                assertEquals(new HashSet<>(hits), new HashSet<>(lookup.raycastAll(origin, direction, maxDistance)));
+            }
+        }
+    }
+
+    @Test
+    public void nearestMatchesSortedDistances() {
+        Random random = new Random(43);
+        Collection<BoundingBoxLookup<String>> lookups = generateLookups();
+        List<BoundingBox> boundingBoxes = new ArrayList<>();
+
+        for (int i = 0; i < 1000; i++) {
+            BoundingBox boundingBox = randomSmallBoundingBox(random);
+            String value = String.valueOf(i);
+            boundingBoxes.add(boundingBox);
+            lookups.forEach(lookup -> lookup.insert(value, boundingBox));
+        }
+
+        for (int i = 0; i < 100; i++) {
+            Vec point = new Vec(random.nextDouble(-50, 150), random.nextDouble(-50, 150), random.nextDouble(-50, 150));
+            int k = List.of(0, 1, 8, 50, 2000).get(i % 5);
+            List<Double> expected = boundingBoxes.stream()
+                    .map(boundingBox -> boundingBox.distanceSquared(point))
+                    .sorted()
+                    .limit(k)
+                    .toList();
+            for (var lookup : lookups) {
+                // ties may resolve to either entry, so only the distances are compared
+                List<Double> distances = lookup.nearest(point, k).stream()
+                        .map(entry -> entry.boundingBox().distanceSquared(point))
+                        .toList();
+                assertEquals(expected, distances);
+            }
+        }
+    }
+
+    @Test
+    public void sphereQueriesMatchListLookup() {
+        Random random = new Random(47);
+        Collection<BoundingBoxLookup<String>> lookups = generateLookups();
+        BoundingBoxLookup<String> expected = BoundingBoxLookups.list();
+
+        for (int i = 0; i < 1000; i++) {
+            BoundingBox boundingBox = randomSmallBoundingBox(random);
+            String value = String.valueOf(i);
+            expected.insert(value, boundingBox);
+            lookups.forEach(lookup -> lookup.insert(value, boundingBox));
+        }
+
+        for (int i = 0; i < 100; i++) {
+            Vec center = new Vec(random.nextDouble(-20, 120), random.nextDouble(-20, 120), random.nextDouble(-20, 120));
+            Sphere sphere = new Sphere(center, random.nextDouble(0, 30));
+            Map<BoundingBoxLookup.Entry<String>, Integer> expectedCounts = entryCounts(visitEntriesList(expected, sphere));
+            for (var lookup : lookups) {
+                assertEquals(expectedCounts, entryCounts(visitEntriesList(lookup, sphere)));
+            }
+        }
+    }
+
+    @Test
+    public void batchedVisitMatchesIndividualVisits() {
+        Random random = new Random(53);
+        Collection<BoundingBoxLookup<String>> lookups = generateLookups();
+
+        for (int i = 0; i < 1000; i++) {
+            BoundingBox boundingBox = randomSmallBoundingBox(random);
+            String value = String.valueOf(i % 700);
+            lookups.forEach(lookup -> lookup.insert(value, boundingBox));
+        }
+
+        List<QueryItem> queries = new ArrayList<>();
+        for (int i = 0; i < 300; i++) {
+            Vec point = new Vec(random.nextDouble(-20, 120), random.nextDouble(-20, 120), random.nextDouble(-20, 120));
+            queries.add(switch (i % 5) {
+                case 0 -> new BoundingBox(point, point.add(random.nextDouble(0, 20)));
+                case 1 -> point;
+                case 2 -> new Line(point, point.add(random.nextDouble(-20, 20), random.nextDouble(-20, 20), random.nextDouble(-20, 20)));
+                case 3 -> new Sphere(point, random.nextDouble(0, 10));
+                default -> i == 4 ? QueryItem.ALL : point;
+            });
+        }
+
+        for (var lookup : lookups) {
+            List<List<BoundingBoxLookup.Entry<String>>> batched = new ArrayList<>();
+            queries.forEach(ignored -> batched.add(new ArrayList<>()));
+            lookup.visitAll(queries, (index, entry) -> batched.get(index).add(entry));
+
+            for (int i = 0; i < queries.size(); i++) {
+                assertEquals(entryCounts(visitEntriesList(lookup, queries.get(i))), entryCounts(batched.get(i)));
+            }
+        }
+    }
+
+    @Test
+    public void overlappingPairsMatchBruteForce() {
+        Random random = new Random(59);
+        Collection<BoundingBoxLookup<String>> lookups = generateLookups();
+        List<BoundingBoxLookup.Entry<String>> entries = new ArrayList<>();
+
+        for (int i = 0; i < 500; i++) {
+            BoundingBox boundingBox = i % 50 == 0 ? new BoundingBox(Vec.ZERO, Vec.ONE) : randomSmallBoundingBox(random);
+            String value = String.valueOf(i % 400);
+            entries.add(new BoundingBoxLookup.Entry<>(value, boundingBox));
+            lookups.forEach(lookup -> lookup.insert(value, boundingBox));
+        }
+
+        // pairs are unordered, so both entries of a pair are put in a consistent order
+        Map<List<BoundingBoxLookup.Entry<String>>, Integer> expected = new HashMap<>();
+        for (int i = 0; i < entries.size(); i++) {
+            for (int j = i + 1; j < entries.size(); j++) {
+                if (entries.get(i).boundingBox().intersects(entries.get(j).boundingBox())) {
+                    expected.merge(pair(entries.get(i), entries.get(j)), 1, Integer::sum);
+                }
+            }
+        }
+
+        for (var lookup : lookups) {
+            Map<List<BoundingBoxLookup.Entry<String>>, Integer> pairs = new HashMap<>();
+            lookup.forEachOverlappingPair((a, b) -> pairs.merge(pair(a, b), 1, Integer::sum));
+            assertEquals(expected, pairs);
+        }
+    }
+
+    @Test
+    public void bulkLoadedTreeMatchesListLookup() {
+        Random random = new Random(13);
+        BoundingBoxLookup<String> expected = BoundingBoxLookups.list();
+
+        // large enough to be built in parallel, with some duplicate entries
+        List<BoundingBoxLookup.Entry<String>> entries = new ArrayList<>();
+        for (int i = 0; i < 20000; i++) {
+            var entry = new BoundingBoxLookup.Entry<>(String.valueOf(i), randomSmallBoundingBox(random));
+            entries.add(entry);
+            if (i % 100 == 0) {
+                entries.add(entry);
+            }
+        }
+        entries.forEach(entry -> expected.insert(entry.value(), entry.boundingBox()));
+        BoundingBoxLookup<String> tree = BoundingBoxLookups.treeOf(entries);
+
+        assertEquals(expected.size(), tree.size());
+
+        // the bulk loaded tree stays mutable
+        for (int i = 0; i < 1000; i++) {
+            var entry = entries.get(random.nextInt(entries.size()));
+            expected.remove(entry.value(), entry.boundingBox());
+            tree.remove(entry.value(), entry.boundingBox());
+        }
+        assertEquals(expected.size(), tree.size());
+
+        for (int i = 0; i < 100; i++) {
+            BoundingBox query = randomSmallBoundingBox(random);
+            assertEquals(entryCounts(visitEntriesList(expected, query)), entryCounts(visitEntriesList(tree, query)));
+        }
+        assertEquals(entryCounts(visitEntriesList(expected, QueryItem.ALL)), entryCounts(visitEntriesList(tree, QueryItem.ALL)));
+    }
+
+    @Test
+    public void treeStaysBalancedUnderSortedInsertionAndChurn() {
+        TreeLookupImpl<Integer> tree = new TreeLookupImpl<>();
+        List<BoundingBox> boxes = new ArrayList<>();
+        for (int i = 0; i < 4096; i++) {
+            BoundingBox boundingBox = new BoundingBox(new Vec(i, 0, 0), new Vec(i + 1, 1, 1));
+            boxes.add(boundingBox);
+            tree.insert(i, boundingBox);
+        }
+        assertTrue(tree.depth() <= 24, "depth " + tree.depth());
+
+        // move every entry somewhere random, a few times over
+        Random random = new Random(17);
+        for (int round = 0; round < 4; round++) {
+            for (int i = 0; i < boxes.size(); i++) {
+                Vec min = new Vec(random.nextDouble(0, 4096), random.nextDouble(0, 64), random.nextDouble(0, 64));
+                BoundingBox moved = new BoundingBox(min, min.add(1));
+                tree.remove(i, boxes.get(i));
+                tree.insert(i, moved);
+                boxes.set(i, moved);
+            }
+        }
+        assertEquals(boxes.size(), tree.size());
+        assertTrue(tree.depth() <= 32, "depth " + tree.depth());
+
+        // removed entries no longer contribute to the bounds of their ancestors
+        double cost = tree.cost();
+        for (int i = 0; i < boxes.size() / 2; i++) {
+            tree.remove(i, boxes.get(i));
+        }
+        assertTrue(tree.cost() <= cost, "cost " + tree.cost() + " > " + cost);
+    }
+
+    @Test
+    public void dynamicTreeStaysBalancedUnderSortedInsertion() {
+        DynamicTreeLookupImpl<Integer> tree = new DynamicTreeLookupImpl<>();
+        for (int i = 0; i < 4096; i++) {
+            tree.insert(i, new BoundingBox(new Vec(i, 0, 0), new Vec(i + 1, 1, 1)));
+        }
+        assertTrue(tree.depth() <= 20, "depth " + tree.depth());
+
+        for (int i = 0; i < 4096; i += 2) {
+            tree.remove(i, new BoundingBox(new Vec(i, 0, 0), new Vec(i + 1, 1, 1)));
+        }
+        assertEquals(2048, tree.size());
+        assertTrue(tree.depth() <= 20, "depth " + tree.depth());
+    }
+
+    @Test
+    public void dynamicTreeRejectsInvalidMargins() {
+        for (double margin : new double[] {-1, Double.NaN, Double.POSITIVE_INFINITY}) {
+            assertThrows(IllegalArgumentException.class, () -> BoundingBoxLookups.dynamicTree(margin));
+        }
+        assertEquals(0, BoundingBoxLookups.dynamicTree(0).size());
+    }
+
+    @Test
+    public void compactDynamicTreeNeverMissesEntries() {
+        Random random = new Random(47);
+        BoundingBoxLookup<String> expected = BoundingBoxLookups.list();
+        BoundingBoxLookup<String> compact = BoundingBoxLookups.compactDynamicTree();
+
+        Map<String, BoundingBox> boxes = new HashMap<>();
+        for (int i = 0; i < 2000; i++) {
+            // far from the origin, where floats are coarse
+            BoundingBox boundingBox = randomSmallBoundingBox(random);
+            boundingBox = new BoundingBox(boundingBox.min().add(3e7), boundingBox.max().add(3e7));
+            boxes.put(String.valueOf(i), boundingBox);
+            expected.insert(String.valueOf(i), boundingBox);
+            compact.insert(String.valueOf(i), boundingBox);
+        }
+
+        for (int i = 0; i < 200; i++) {
+            BoundingBox query = randomSmallBoundingBox(random);
+            query = new BoundingBox(query.min().add(3e7), query.max().add(3e7));
+            Set<String> found = new HashSet<>();
+            for (var entry : compact.visit(query)) {
+                // reported boxes are rounded outwards
+                BoundingBox exact = boxes.get(entry.value());
+                assertTrue(entry.boundingBox().contains(exact), entry.toString());
+                found.add(entry.value());
+            }
+            assertTrue(found.containsAll(visitList(expected, query)));
+        }
+
+        // removing with the boxes the entries were inserted with
+        for (int i = 0; i < 2000; i += 2) {
+            compact.remove(String.valueOf(i), boxes.get(String.valueOf(i)));
+        }
+        assertEquals(1000, compact.size());
+        assertEquals(1000, visitList(compact, QueryItem.ALL).size());
+
+        // the freed leaf slots are reused, and moved entries keep their own
+        for (int i = 0; i < 2000; i += 2) {
+            compact.insert(String.valueOf(i), boxes.get(String.valueOf(i)));
+        }
+        for (int i = 1; i < 2000; i += 2) {
+            BoundingBox oldBox = boxes.get(String.valueOf(i));
+            BoundingBox newBox = new BoundingBox(oldBox.min().add(i % 4 == 1 ? 0.05 : 50), oldBox.max().add(i % 4 == 1 ? 0.05 : 50));
+            boxes.put(String.valueOf(i), newBox);
+            compact.update(String.valueOf(i), oldBox, newBox);
+        }
+        assertEquals(2000, compact.size());
+        for (var entry : compact.visit(QueryItem.ALL)) {
+            assertTrue(entry.boundingBox().contains(boxes.get(entry.value())), entry.toString());
+        }
+    }
+
+    @Test
+    public void visitUntilStopsEarly() {
+        for (BoundingBoxLookup<String> lookup : generateLookups()) {
+            BoundingBox boundingBox = new BoundingBox(new Vec(0, 0, 0), new Vec(1, 1, 1));
+            for (int i = 0; i < 10; i++) {
+                lookup.insert(String.valueOf(i), boundingBox);
+            }
+
+            int[] visited = {0};
+            assertTrue(lookup.visitUntil(boundingBox, (value, box) -> ++visited[0] == 3));
+            assertEquals(3, visited[0]);
+
+            visited[0] = 0;
+            assertFalse(lookup.visitUntil(boundingBox, (value, box) -> ++visited[0] == 11));
+            assertEquals(10, visited[0]);
+        }
+    }
+
     private Collection<BoundingBoxLookup<String>> generateLookups() {
         return List.of(
                 BoundingBoxLookups.list(),
                 BoundingBoxLookups.grid(),
-                BoundingBoxLookups.tree()
+                BoundingBoxLookups.tree(),
+                BoundingBoxLookups.flatTree(),
+                BoundingBoxLookups.dynamicTree(),
+                BoundingBoxLookups.indexed(BoundingBoxLookups.grid()),
+                // smaller than the generated entries, so the outermost cells hold the rest
+                BoundingBoxLookups.grid(new BoundingBox(new Vec(10), new Vec(90)), 8),
+                BoundingBoxLookups.hashGrid(8),
+                BoundingBoxLookups.sweepAndPrune(),
+                BoundingBoxLookups.concurrent()
         );
     }
 
+    private BoundingBox randomBoundingBox(Random random) {
+        double minX = random.nextDouble(0, 100);
+        double minY = random.nextDouble(0, 100);
+        double minZ = random.nextDouble(0, 100);
+
+        double maxX = random.nextDouble(minX, 100);
+        double maxY = random.nextDouble(minY, 100);
+        double maxZ = random.nextDouble(minZ, 100);
+
+        return new BoundingBox(new Vec(minX, minY, minZ), new Vec(maxX, maxY, maxZ));
+    }
+
+    private BoundingBox randomSmallBoundingBox(Random random) {
+        Vec min = new Vec(random.nextDouble(0, 100), random.nextDouble(0, 100), random.nextDouble(0, 100));
+        Vec size = new Vec(random.nextDouble(0, 10), random.nextDouble(0, 10), random.nextDouble(0, 10));
+        return new BoundingBox(min, min.add(size));
+    }
+
+    private <T> List<BoundingBoxLookup.Entry<T>> pair(BoundingBoxLookup.Entry<T> a, BoundingBoxLookup.Entry<T> b) {
+        return a.toString().compareTo(b.toString()) <= 0 ? List.of(a, b) : List.of(b, a);
+    }
+
+    private <T> Map<BoundingBoxLookup.Entry<T>, Integer> entryCounts(List<BoundingBoxLookup.Entry<T>> entries) {
+        Map<BoundingBoxLookup.Entry<T>, Integer> counts = new HashMap<>();
+        for (BoundingBoxLookup.Entry<T> entry : entries) {
+            counts.merge(entry, 1, Integer::sum);
+        }
+        return counts;
+    }
+
     private <T> List<T> visitList(BoundingBoxLookup<T> lookup, QueryItem query) {
         return visitEntriesList(lookup, query).stream().map(BoundingBoxLookup.Entry::value).toList();
     }